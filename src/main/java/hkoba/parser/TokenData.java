@@ -5,6 +5,8 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public abstract class TokenData<T> {
     @EqualsAndHashCode
@@ -63,8 +65,13 @@ public abstract class TokenData<T> {
 
     private final TokenMap tokenMap;
 
-    @Getter
-    private final T value;
+    private T value;
+
+    /**
+     * 値を求める処理
+     * 求めた後は null
+     */
+    private Supplier<T> valueSupplier;
 
     private TokenData(TokenType type, TokenMap tokenMap, T value) {
         this.type = type;
@@ -72,6 +79,25 @@ public abstract class TokenData<T> {
         this.value = value;
     }
 
+    private TokenData(TokenType type, TokenMap tokenMap, Supplier<T> value) {
+        this.type = type;
+        this.tokenMap = tokenMap;
+        this.valueSupplier = value;
+    }
+
+    /**
+     * 値は参照された時点で求める
+     *
+     * @return
+     */
+    public T getValue() {
+        if (valueSupplier != null) {
+            value = valueSupplier.get();
+            valueSupplier = null;
+        }
+        return value;
+    }
+
     public TokenMap next() {
         return tokenMap.move(getEnd());
     }
@@ -88,7 +114,7 @@ public abstract class TokenData<T> {
 
     @Override
     public String toString() {
-        return "<" + type + ">" + tokenMap.getIndex() + "=" + value;
+        return "<" + type + ">" + tokenMap.getIndex() + "=" + getValue();
     }
 
     public static class TextToken<T> extends TokenData<T> {
@@ -103,8 +129,25 @@ public abstract class TokenData<T> {
             this.end = end;
         }
 
+        /**
+         * 値は参照された時点で resolver で求める
+         * 値を渡すコンストラクタと取り違えないように、名前を分けている
+         *
+         * @param type
+         * @param tokenMap
+         * @param end
+         * @param text
+         * @param resolver
+         * @return
+         */
+        public static <T> TextToken<T> lazy(TokenType type, TokenMap tokenMap, Index end, String text, Function<String, T> resolver) {
+            TextToken<T> result = new TextToken<>(type, tokenMap, end, text, (T) null);
+            ((TokenData<T>) result).valueSupplier = () -> resolver.apply(text);
+            return result;
+        }
+
         public TextToken(TextToken<T> src, TokenMap tokenMap) {
-            super(src.getType(), tokenMap, src.getValue());
+            super(src.getType(), tokenMap, src::getValue);
             this.text = src.getText();
             this.end = src.getEnd();
         }
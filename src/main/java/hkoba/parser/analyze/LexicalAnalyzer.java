@@ -3,7 +3,6 @@ package hkoba.parser.analyze;
 import hkoba.parser.TokenData;
 import hkoba.parser.TokenMap;
 import lombok.Getter;
-import lombok.Setter;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -20,8 +19,16 @@ public class LexicalAnalyzer {
             @Getter
             private final TokenData.Index index;
 
-            @Getter
-            private final String whiteSpace;
+            /**
+             * 空白の開始位置
+             */
+            private final int whiteSpaceStart;
+
+            /**
+             * 空白とコメント
+             * 参照するまでは null
+             */
+            private String whiteSpace;
 
             private List<TokenData.TextToken<?>> tokenList;
 
@@ -29,17 +36,31 @@ public class LexicalAnalyzer {
 
             private Map<String, TokenData.TextToken<?>> textTokenMap = new HashMap<>();
 
-            private LexicalTokenMap(String whiteSpace) {
+            private LexicalTokenMap(int whiteSpaceStart) {
                 this.index = ParserContext.this.getIndex();
-                this.whiteSpace = whiteSpace;
-                String target = ParserContext.this.text.substring(this.index.getIndex());
+                this.whiteSpaceStart = whiteSpaceStart;
+                int start = this.index.getIndex();
+                // 文字列を受け取る関数にだけ残りの入力を切り出す
+                String[] target = new String[1];
                 parserEntryMap.forEach((k, v) -> {
                     Function<String, Object> resolver = null;
                     String token = "";
                     TokenData.Index end = null;
                     for (ParserEntryData entry : v) {
                         for (Function<String, String> parser : entry.parsers) {
-                            String result = parser.apply(target);
+                            String result;
+                            if (parser instanceof TextMatcher) {
+                                int len = ((TextMatcher) parser).match(ParserContext.this.text, start);
+                                if (len <= token.length()) {
+                                    continue;
+                                }
+                                result = ParserContext.this.text.substring(start, start + len);
+                            } else {
+                                if (target[0] == null) {
+                                    target[0] = ParserContext.this.text.substring(start);
+                                }
+                                result = parser.apply(target[0]);
+                            }
                             if (result != null && result.length() > token.length()) {
                                 token = result;
                                 resolver = entry.resolver;
@@ -50,9 +71,9 @@ public class LexicalAnalyzer {
                         }
                     }
                     if (token.length() > 0) {
-                        // ヒットした
-                        Object value = (resolver != null ? resolver.apply(token) : token);
-                        cacheMap.put(k, new TokenData.TextToken(k, this, end, token, value));
+                        // ヒットした 値は参照された時点で求める
+                        Function<String, Object> valueResolver = resolver != null ? resolver : s -> s;
+                        cacheMap.put(k, TokenData.TextToken.lazy(k, this, end, token, valueResolver));
                     }
                 });
                 // エイリアス
@@ -70,7 +91,8 @@ public class LexicalAnalyzer {
                     }
                     if (data != null) {
                         // Aliasできた
-                        cacheMap.put(k, new TokenData.TextToken<>(k, this, data.getEnd(), data.getText(), data.getValue()));
+                        TokenData.TextToken<?> src = data;
+                        cacheMap.put(k, TokenData.TextToken.<Object>lazy(k, this, src.getEnd(), src.getText(), s -> src.getValue()));
                     }
                 });
             }
@@ -80,6 +102,14 @@ public class LexicalAnalyzer {
                 return this.index.getIndex() >= ParserContext.this.text.length();
             }
 
+            @Override
+            public String getWhiteSpace() {
+                if (whiteSpace == null) {
+                    whiteSpace = ParserContext.this.text.substring(whiteSpaceStart, this.index.getIndex());
+                }
+                return whiteSpace;
+            }
+
             @Override
             public TokenMap next(int index) {
                 return ParserContext.this.moveNext(index).getTokenMap();
@@ -123,59 +153,98 @@ public class LexicalAnalyzer {
 
         private StringBuilder text;
         private int index;
-        private int row;
-        private int col;
+
+        /**
+         * 行の開始位置(昇順)
+         */
+        private int[] lineStarts;
 
         private Map<Integer, LexicalTokenMap> tokenMap = new HashMap<>();
 
         private ParserContext(StringBuilder text) {
             this.text = text;
             index = 0;
-            row = col = 1;
+            int count = 1;
+            int[] starts = new int[16];
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                    }
+                    starts[count++] = i + 1;
+                }
+            }
+            lineStarts = Arrays.copyOf(starts, count);
         }
 
         private ParserContext moveNext(int ix) {
             if (ix > index) {
-                int ex = text.lastIndexOf("\n", ix - 1);
-                if (ex >= index) {
-                    // 改行あり
-                    row += (ix - index) - text.substring(index, ix).replaceAll("\\n", "").length();
-                    col = ix - ex;
-                } else {
-                    // 改行なし
-                    col += (ix - index);
-                }
                 index = ix;
             }
             return this;
         }
 
         private TokenData.Index getIndex() {
-            return new TokenData.Index(index, row, col);
+            int line = Arrays.binarySearch(lineStarts, index);
+            if (line < 0) {
+                line = -line - 2;
+            }
+            return new TokenData.Index(index, line + 1, index - lineStarts[line] + 1);
         }
 
         private ParserContext restore(TokenData.Index ix) {
             index = ix.getIndex();
-            row = ix.getRow();
-            col = ix.getCol();
             return this;
         }
 
-        private String skipSpace() {
+        private boolean startsWith(int ix, String prefix) {
+            if (text.length() - ix < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (text.charAt(ix + i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 空白とコメントを読み飛ばす
+         *
+         * @return 読み飛ばす前の位置
+         */
+        private int skipSpace() {
+            int result = index;
             int ix = index;
+            loop:
             while (ix < text.length()) {
-                if (whiteSpaces.indexOf(text.charAt(ix)) < 0) {
-                    break;
+                char ch = text.charAt(ix);
+                if (isSpace(ch)) {
+                    ix++;
+                    continue;
                 }
-                ix++;
+                for (String[] comment : commentList) {
+                    if (startsWith(ix, comment[0])) {
+                        ix += comment[0].length();
+                        // 閉じていない場合は終わりまで
+                        int end = comment[1] != null ? text.indexOf(comment[1], ix) : text.indexOf("\n", ix);
+                        if (end < 0) {
+                            ix = text.length();
+                        } else {
+                            ix = comment[1] != null ? end + comment[1].length() : end;
+                        }
+                        continue loop;
+                    }
+                }
+                break;
             }
-            String result = text.substring(index, ix);
             moveNext(ix);
             return result;
         }
 
         private LexicalTokenMap getTokenMap() {
-            String space = skipSpace();
+            int space = skipSpace();
             LexicalTokenMap map = tokenMap.get(index);
             if (map == null) {
                 map = new LexicalTokenMap(space);
@@ -186,9 +255,67 @@ public class LexicalAnalyzer {
     }
 
     @Getter
-    @Setter
     private String whiteSpaces = " \t\r\n";
 
+    /**
+     * ASCII の空白のビットマップ
+     */
+    private long[] spaceBits = spaceBits(whiteSpaces);
+
+    /**
+     * コメントの開始と終了の文字列
+     * 行コメントは終了が null
+     */
+    private List<String[]> commentList = new ArrayList<>();
+
+    public void setWhiteSpaces(String whiteSpaces) {
+        this.whiteSpaces = whiteSpaces;
+        this.spaceBits = spaceBits(whiteSpaces);
+    }
+
+    private static long[] spaceBits(String whiteSpaces) {
+        long[] result = new long[2];
+        for (int i = 0; i < whiteSpaces.length(); i++) {
+            char ch = whiteSpaces.charAt(i);
+            if (ch < 128) {
+                result[ch >> 6] |= 1L << ch;
+            }
+        }
+        return result;
+    }
+
+    private boolean isSpace(char ch) {
+        if (ch < 128) {
+            return (spaceBits[ch >> 6] & (1L << ch)) != 0;
+        }
+        return whiteSpaces.indexOf(ch) >= 0;
+    }
+
+    /**
+     * 行の終わりまでのコメントを登録する
+     *
+     * @param start 開始文字列
+     */
+    public void addLineComment(String start) {
+        if (start == null || start.isEmpty()) {
+            throw new IllegalArgumentException("No comment start");
+        }
+        commentList.add(new String[]{start, null});
+    }
+
+    /**
+     * 終了文字列までのコメントを登録する
+     *
+     * @param start 開始文字列
+     * @param end   終了文字列
+     */
+    public void addBlockComment(String start, String end) {
+        if (start == null || start.isEmpty() || end == null || end.isEmpty()) {
+            throw new IllegalArgumentException("No comment pattern");
+        }
+        commentList.add(new String[]{start, end});
+    }
+
     private static class ParserEntryData {
         private List<Function<String, String>> parsers = new ArrayList<>();
         private Function<String, Object> resolver;
@@ -301,21 +428,33 @@ public class LexicalAnalyzer {
      * @param word
      * @return
      */
-    public static Function<String, String> word(String word, String... others) {
-        return s -> {
+    public static TextMatcher word(String word, String... others) {
+        return (text, index) -> {
             int len = 0;
-            if (s.startsWith(word)) {
+            if (startsWith(text, index, word)) {
                 len = word.length();
             }
             for (String wd : others) {
-                if (wd.length() > len && s.startsWith(wd)) {
+                if (wd.length() > len && startsWith(text, index, wd)) {
                     len = wd.length();
                 }
             }
-            return len > 0 ? s.substring(0, len) : null;
+            return len;
         };
     }
 
+    private static boolean startsWith(CharSequence text, int index, String prefix) {
+        if (text.length() - index < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(index + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 正規表現として一致するものを探す
      *
@@ -323,24 +462,32 @@ public class LexicalAnalyzer {
      * @param others
      * @return
      */
-    public static Function<String, String> regex(String regex, String... others) {
+    public static TextMatcher regex(String regex, String... others) {
         List<Pattern> patterns = new ArrayList<>();
         patterns.add(Pattern.compile(regex));
         for (String pat : others) {
             patterns.add(Pattern.compile(pat));
         }
-        return s -> {
+        // Matcher はスレッドごとに再利用する
+        ThreadLocal<Matcher[]> matchers = ThreadLocal.withInitial(() -> {
+            Matcher[] result = new Matcher[patterns.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = patterns.get(i).matcher("");
+            }
+            return result;
+        });
+        return (text, index) -> {
             int len = 0;
-            for (Pattern pat : patterns) {
-                Matcher matcher = pat.matcher(s);
-                if (matcher.find()) {
-                    String res = matcher.group();
-                    if (res.length() > len && s.startsWith(res)) {
-                        len = res.length();
-                    }
+            Matcher[] list = matchers.get();
+            for (Matcher matcher : list) {
+                // 開始位置からの一致のみを調べる
+                matcher.reset(text).region(index, text.length());
+                if (matcher.lookingAt() && matcher.end() - index > len) {
+                    len = matcher.end() - index;
                 }
+                matcher.reset("");
             }
-            return len > 0 ? s.substring(0, len) : null;
+            return len;
         };
     }
 
@@ -350,7 +497,26 @@ public class LexicalAnalyzer {
      * @param size
      * @return
      */
-    public static Function<String, String> left(int size) {
-        return s -> s.length() >= size ? s.substring(0, size) : null;
+    public static TextMatcher left(int size) {
+        return (text, index) -> text.length() - index >= size ? size : 0;
+    }
+
+    /**
+     * 入力を切り出さずに、指定した位置から一致する長さを求める
+     */
+    @FunctionalInterface
+    public interface TextMatcher extends Function<String, String> {
+        /**
+         * @param text  入力全体
+         * @param index 開始位置
+         * @return 一致した文字数、一致しない場合は 0
+         */
+        int match(CharSequence text, int index);
+
+        @Override
+        default String apply(String s) {
+            int len = match(s, 0);
+            return len > 0 ? s.substring(0, len) : null;
+        }
     }
 }
@@ -9,6 +9,16 @@ import lombok.Getter;
 public interface ITokenType extends CharSequence {
     String getTokenName();
 
+    /**
+     * 種別の番号
+     * 同じ名前の種別は同じ番号になる
+     *
+     * @return
+     */
+    default int getTypeId() {
+        return TokenTypeRegistry.idOf(getTokenName());
+    }
+
     /**
      * equalsが使えないのでこれで一致するかをチェックする
      *
@@ -16,7 +26,7 @@ public interface ITokenType extends CharSequence {
      * @return
      */
     default boolean isSame(ITokenType other) {
-        return getTokenName().equals(other.getTokenName());
+        return getTypeId() == other.getTypeId();
     }
 
     @Override
@@ -54,22 +64,37 @@ public interface ITokenType extends CharSequence {
         default String getTokenName() {
             return ((E) this).name();
         }
+
+        @Override
+        default int getTypeId() {
+            return TokenTypeRegistry.idOf((Enum<?>) this);
+        }
     }
 
     /**
      * クラスの実体で持つトークン種別
      */
-    @EqualsAndHashCode
+    @EqualsAndHashCode(exclude = "typeId")
     class CToken implements ITokenType {
         @Getter
         private final String tokenName;
 
+        @Getter
+        private final int typeId;
+
         private CToken(String name) {
             tokenName = name;
+            typeId = TokenTypeRegistry.idOf(name);
         }
 
+        /**
+         * 同じ名前の場合は同じインスタンスを返す
+         *
+         * @param name
+         * @return
+         */
         public static CToken from(String name) {
-            return new CToken(name);
+            return TokenTypeRegistry.cTokenMap.computeIfAbsent(name, CToken::new);
         }
 
         /**
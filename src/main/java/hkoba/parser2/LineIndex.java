@@ -0,0 +1,111 @@
+package hkoba.parser2;
+
+import java.util.Arrays;
+
+/**
+ * 行の開始位置の一覧
+ * 行と列は位置から二分探索で求める
+ * release() で破棄した行の開始位置は持たないので、破棄した位置の行と列は求められない
+ */
+public class LineIndex {
+    private final CharSequence text;
+
+    /**
+     * 行の開始位置(昇順)
+     */
+    private int[] lineStarts = new int[16];
+
+    private int lineCount = 1;
+
+    /**
+     * 破棄した行数
+     */
+    private int lineBase = 0;
+
+    /**
+     * 改行を調べ終わった位置
+     */
+    private int scanned = 0;
+
+    public LineIndex(CharSequence text) {
+        this.text = text;
+    }
+
+    /**
+     * 指定した位置の手前までの改行を登録する
+     *
+     * @param index
+     */
+    public void scan(int index) {
+        int end = Math.min(index, text.length());
+        for (int i = scanned; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                }
+                lineStarts[lineCount++] = i + 1;
+            }
+        }
+        scanned = Math.max(scanned, end);
+    }
+
+    /**
+     * 指定した位置を含む行より前の改行位置を破棄する
+     * 破棄した位置の行と列は求められなくなる
+     *
+     * @param index
+     */
+    public void release(int index) {
+        if (index < lineStarts[0]) {
+            // 破棄済み
+            return;
+        }
+        int line = lineOf(index);
+        if (line > 0) {
+            System.arraycopy(lineStarts, line, lineStarts, 0, lineCount - line);
+            lineCount -= line;
+            lineBase += line;
+            if (lineStarts.length > 16 && lineCount * 4 < lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, Math.max(16, lineCount * 2));
+            }
+        }
+    }
+
+    /**
+     * 指定した位置を含む行のインデックス
+     *
+     * @param index 破棄した行より後の位置
+     * @return
+     */
+    private int lineOf(int index) {
+        scan(index);
+        int ix = Arrays.binarySearch(lineStarts, 0, lineCount, index);
+        return ix >= 0 ? ix : -ix - 2;
+    }
+
+    /**
+     * 行番号(1から)
+     *
+     * @param index
+     * @return 破棄した位置の場合は 0
+     */
+    public int getRow(int index) {
+        if (index < lineStarts[0]) {
+            return 0;
+        }
+        return lineBase + lineOf(index) + 1;
+    }
+
+    /**
+     * 列番号(1から)
+     *
+     * @param index
+     * @return 破棄した位置の場合は 0
+     */
+    public int getCol(int index) {
+        if (index < lineStarts[0]) {
+            return 0;
+        }
+        return index - lineStarts[lineOf(index)] + 1;
+    }
+}
@@ -2,7 +2,6 @@ package hkoba.parser2;
 
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 
 import java.util.Comparator;
@@ -10,14 +9,60 @@ import java.util.List;
 import java.util.Optional;
 
 public abstract class TokenContext {
-    @Getter
-    @RequiredArgsConstructor
-    @EqualsAndHashCode
-    @ToString
+    @EqualsAndHashCode(exclude = "lineIndex")
+    @ToString(exclude = "lineIndex")
     public static class Index {
+        @Getter
         private final int index;
-        private final int row;
-        private final int col;
+        private int row;
+        private int col;
+
+        /**
+         * 行と列を求めるための改行位置
+         * 求めた後は null
+         */
+        private LineIndex lineIndex;
+
+        public Index(int index, int row, int col) {
+            this.index = index;
+            this.row = row;
+            this.col = col;
+        }
+
+        public Index(int index, LineIndex lineIndex) {
+            this.index = index;
+            this.lineIndex = lineIndex;
+        }
+
+        /**
+         * 行番号(1から)
+         * 求める前に cut() で入力を破棄した位置は 0
+         *
+         * @return
+         */
+        public int getRow() {
+            resolve();
+            return row;
+        }
+
+        /**
+         * 列番号(1から)
+         * 求める前に cut() で入力を破棄した位置は 0
+         *
+         * @return
+         */
+        public int getCol() {
+            resolve();
+            return col;
+        }
+
+        private void resolve() {
+            if (lineIndex != null) {
+                row = lineIndex.getRow(index);
+                col = lineIndex.getCol(index);
+                lineIndex = null;
+            }
+        }
     }
 
     public abstract boolean isEof();
@@ -51,6 +96,13 @@ public abstract class TokenContext {
      */
     public abstract TokenContext restore(Index index);
 
+    /**
+     * この位置より前には戻らないことを通知する
+     * 前の位置のキャッシュと入力を破棄できるようになる
+     */
+    public void release() {
+    }
+
     /**
      * 最も長く一致したトークンを取得する
      *
@@ -6,6 +6,7 @@ import lombok.ToString;
 
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 @ToString(exclude = "context")
 public abstract class TokenData {
@@ -36,16 +37,26 @@ public abstract class TokenData {
         return context.getWhiteSpace();
     }
 
-    @ToString(callSuper = true)
+    @ToString(callSuper = true, exclude = {"textSupplier", "resolver"})
     public static class TextToken extends TokenData {
         @Getter
         private final TokenContext.Index end;
 
-        @Getter
-        private final String text;
+        private String text;
 
-        @Getter
-        private final Object value;
+        /**
+         * 文字列を求める処理
+         * 求めた後は null
+         */
+        private Supplier<String> textSupplier;
+
+        private Object value;
+
+        /**
+         * 値を求める処理
+         * 求めた後は null
+         */
+        private Function<String, Object> resolver;
 
         public TextToken(ITokenType type, TokenContext context, TokenContext.Index end, String text, Object value) {
             super(type, context);
@@ -53,6 +64,70 @@ public abstract class TokenData {
             this.end = end;
             this.value = value;
         }
+
+        /**
+         * 文字列は参照された時点で求める
+         *
+         * @param type
+         * @param context
+         * @param end
+         * @param text
+         * @param value
+         */
+        public TextToken(ITokenType type, TokenContext context, TokenContext.Index end, Supplier<String> text, Object value) {
+            super(type, context);
+            this.textSupplier = text;
+            this.end = end;
+            this.value = value;
+        }
+
+        /**
+         * 文字列と値は参照された時点で求める
+         * 後戻りで捨てられるトークンの値は求めない
+         * 値を渡すコンストラクタと取り違えないように、名前を分けている
+         *
+         * @param type
+         * @param context
+         * @param end
+         * @param text
+         * @param resolver 値を求める処理。null の場合は値も null
+         * @return
+         */
+        public static TextToken lazy(ITokenType type, TokenContext context, TokenContext.Index end, Supplier<String> text, Function<String, Object> resolver) {
+            TextToken result = new TextToken(type, context, end, text, (Object) null);
+            result.resolver = resolver;
+            return result;
+        }
+
+        /**
+         * 文字列と値は参照された時点で src から取り出す
+         *
+         * @param src
+         * @param context
+         */
+        protected TextToken(TextToken src, TokenContext context) {
+            super(src.getType(), context);
+            this.textSupplier = src::getText;
+            this.end = src.getEnd();
+            this.resolver = s -> src.getValue();
+        }
+
+        @Override
+        public Object getValue() {
+            if (resolver != null) {
+                value = resolver.apply(getText());
+                resolver = null;
+            }
+            return value;
+        }
+
+        public String getText() {
+            if (textSupplier != null) {
+                text = textSupplier.get();
+                textSupplier = null;
+            }
+            return text;
+        }
     }
 
     @ToString(callSuper = true)
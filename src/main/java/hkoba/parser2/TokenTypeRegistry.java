@@ -0,0 +1,75 @@
+package hkoba.parser2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * トークン種別の名前に番号を振る
+ * 同じ名前の種別は同じ番号になり、番号は実行中に変わらない
+ */
+public final class TokenTypeRegistry {
+    private static final Map<String, Integer> idMap = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * CToken.from() で作成した種別
+     */
+    static final Map<String, ITokenType.CToken> cTokenMap = new ConcurrentHashMap<>();
+
+    /**
+     * enum の定数ごとの番号
+     * ordinal で参照する
+     */
+    private static final ClassValue<int[]> enumIds = new ClassValue<int[]>() {
+        @Override
+        protected int[] computeValue(Class<?> type) {
+            Object[] constants = type.getEnumConstants();
+            int[] result = new int[constants.length];
+            for (int i = 0; i < constants.length; i++) {
+                result[i] = idOf(((Enum<?>) constants[i]).name());
+            }
+            return result;
+        }
+    };
+
+    private TokenTypeRegistry() {
+    }
+
+    /**
+     * 名前の番号
+     * 未登録の場合は登録する
+     *
+     * @param name
+     * @return
+     */
+    public static int idOf(String name) {
+        Integer id = idMap.get(name);
+        if (id == null) {
+            id = idMap.computeIfAbsent(name, k -> counter.getAndIncrement());
+        }
+        return id;
+    }
+
+    /**
+     * enum の定数の番号
+     * 名前を引かずに配列で求める
+     *
+     * @param type
+     * @return
+     */
+    public static int idOf(Enum<?> type) {
+        return enumIds.get(type.getDeclaringClass())[type.ordinal()];
+    }
+
+    /**
+     * 登録されている番号の数
+     * 番号は 0 からこの値の手前まで
+     *
+     * @return
+     */
+    public static int size() {
+        return counter.get();
+    }
+}
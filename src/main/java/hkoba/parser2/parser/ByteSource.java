@@ -0,0 +1,86 @@
+package hkoba.parser2.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 のバイト列を復号せずに字句解析する入力
+ * 1バイトを1文字として扱うので、位置はバイト単位となる
+ * 文字列のパターンは UTF-8 に変換して比較し、正規表現は ASCII の範囲のみがそのまま一致する
+ */
+public class ByteSource extends LexerSource {
+    /**
+     * 1バイトを1文字とする参照
+     */
+    private static class ByteView implements CharSequence {
+        private final ByteBuffer buffer;
+
+        private ByteView(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return buffer.limit();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] result = new char[end - start];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = charAt(start + i);
+            }
+            return new String(result);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+
+    private final ByteBuffer buffer;
+
+    /**
+     * 参照する間は buffer の内容を変更しないこと
+     *
+     * @param buffer position から limit までを入力とする
+     */
+    public ByteSource(ByteBuffer buffer) {
+        this(new ByteView(buffer.slice()));
+    }
+
+    private ByteSource(ByteView view) {
+        super(view);
+        this.buffer = view.buffer;
+    }
+
+    /**
+     * 文字列を UTF-8 のバイト列を1バイト1文字とした文字列にする
+     *
+     * @param text
+     * @return
+     */
+    static String toBytes(String text) {
+        return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String text(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer src = buffer.duplicate();
+        src.position(start);
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public CharSequence encode(String text) {
+        return toBytes(text);
+    }
+}
@@ -0,0 +1,144 @@
+package hkoba.parser2.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 全ての状態を展開した決定性オートマトンの遷移表
+ * 文字は遷移先が同じになる範囲ごとにまとめる
+ * 作成後は変更しないので、複数のスレッドから同期せずに参照できる
+ */
+final class DfaTable implements IPatternMatcher {
+    /**
+     * 文字列の定数にする場合の1つの文字列の長さ
+     * クラスファイルの定数の上限を超えないようにする
+     */
+    private static final int PART = 16000;
+
+    /**
+     * 範囲ごとの先頭の文字(昇順)
+     */
+    private final char[] classStarts;
+
+    /**
+     * ASCII の文字の範囲
+     */
+    private final int[] asciiClasses = new int[128];
+
+    /**
+     * 状態ごと、範囲ごとの遷移先
+     */
+    private final int[] next;
+
+    /**
+     * 状態ごとの一致している id の一覧
+     */
+    private final int[][] accepts;
+
+    DfaTable(char[] classStarts, int[] next, int[][] accepts) {
+        this.classStarts = classStarts;
+        this.next = next;
+        this.accepts = accepts;
+        for (int ch = 0; ch < asciiClasses.length; ch++) {
+            asciiClasses[ch] = classOf((char) ch);
+        }
+    }
+
+    private int classOf(char ch) {
+        int ix = Arrays.binarySearch(classStarts, ch);
+        return ix >= 0 ? ix : -ix - 2;
+    }
+
+    /**
+     * 先頭から最長一致させる
+     *
+     * @param text
+     * @param from   開始位置
+     * @param limit  終了位置
+     * @param result id ごとの一致した文字数を設定する
+     * @return 常に true
+     */
+    @Override
+    public boolean match(CharSequence text, int from, int limit, int[] result) {
+        int state = 0;
+        for (int id : accepts[state]) {
+            result[id] = 0;
+        }
+        for (int i = from; i < limit; i++) {
+            char ch = text.charAt(i);
+            state = next[state * classStarts.length + (ch < 128 ? asciiClasses[ch] : classOf(ch))];
+            if (state == LexerAutomaton.DEAD) {
+                break;
+            }
+            for (int id : accepts[state]) {
+                result[id] = i + 1 - from;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 文字列の定数に変換する
+     * 値を1文字ずつ並べて、長さの上限ごとに分ける
+     *
+     * @return
+     */
+    List<String> encode() {
+        StringBuilder buf = new StringBuilder();
+        put(buf, classStarts.length);
+        for (char ch : classStarts) {
+            buf.append(ch);
+        }
+        put(buf, accepts.length);
+        for (int state : next) {
+            // DEAD を 0 とする
+            put(buf, state + 1);
+        }
+        for (int[] ids : accepts) {
+            put(buf, ids.length);
+            for (int id : ids) {
+                put(buf, id);
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < buf.length(); i += PART) {
+            result.add(buf.substring(i, Math.min(buf.length(), i + PART)));
+        }
+        return result;
+    }
+
+    private static void put(StringBuilder buf, int value) {
+        if (value < 0 || value > Character.MAX_VALUE) {
+            throw new IllegalStateException("Too many states: " + value);
+        }
+        buf.append((char) value);
+    }
+
+    /**
+     * encode() で変換した文字列から作成する
+     *
+     * @param parts
+     * @return
+     */
+    static DfaTable decode(List<String> parts) {
+        String data = String.join("", parts);
+        int ix = 0;
+        char[] classStarts = new char[data.charAt(ix++)];
+        for (int i = 0; i < classStarts.length; i++) {
+            classStarts[i] = data.charAt(ix++);
+        }
+        int[][] accepts = new int[data.charAt(ix++)][];
+        int[] next = new int[accepts.length * classStarts.length];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = data.charAt(ix++) - 1;
+        }
+        for (int state = 0; state < accepts.length; state++) {
+            accepts[state] = new int[data.charAt(ix++)];
+            for (int i = 0; i < accepts[state].length; i++) {
+                accepts[state][i] = data.charAt(ix++);
+            }
+        }
+        return new DfaTable(classStarts, next, accepts);
+    }
+}
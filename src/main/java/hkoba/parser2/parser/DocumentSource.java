@@ -0,0 +1,56 @@
+package hkoba.parser2.parser;
+
+/**
+ * 編集できる入力
+ * 字句解析で参照した範囲を記録する
+ */
+class DocumentSource extends LexerSource {
+    /**
+     * 参照した終了位置
+     */
+    private int extent;
+
+    DocumentSource(CharSequence text) {
+        super(text);
+    }
+
+    /**
+     * 参照した範囲の記録を始める
+     *
+     * @param start
+     */
+    void track(int start) {
+        extent = start;
+    }
+
+    /**
+     * 記録を始めてから参照した終了位置
+     *
+     * @return
+     */
+    int getExtent() {
+        return extent;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= extent) {
+            extent = index + 1;
+        }
+        return super.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (end > extent) {
+            extent = end;
+        }
+        return super.subSequence(start, end);
+    }
+
+    @Override
+    protected CharSequence matcherText() {
+        // 正規表現で参照した範囲も記録する
+        return this;
+    }
+}
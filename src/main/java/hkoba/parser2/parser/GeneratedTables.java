@@ -0,0 +1,54 @@
+package hkoba.parser2.parser;
+
+import java.util.Arrays;
+
+/**
+ * LexerGenerator で生成した字句解析の遷移表
+ * 生成したクラスはこのクラスを継承し、出力した文字列の定数を渡す
+ */
+public abstract class GeneratedTables {
+    /**
+     * 文字列の入力に対する式を識別する値
+     */
+    private final String fingerprint;
+
+    private final DfaTable table;
+
+    /**
+     * バイト列の入力に対する式を識別する値
+     */
+    private final String byteFingerprint;
+
+    private final DfaTable byteTable;
+
+    /**
+     * @param table     文字列の入力に対する遷移表。先頭は式を識別する値
+     * @param byteTable バイト列の入力に対する遷移表。先頭は式を識別する値
+     */
+    protected GeneratedTables(String[] table, String[] byteTable) {
+        this.fingerprint = table[0];
+        this.table = DfaTable.decode(Arrays.asList(table).subList(1, table.length));
+        this.byteFingerprint = byteTable[0];
+        this.byteTable = DfaTable.decode(Arrays.asList(byteTable).subList(1, byteTable.length));
+    }
+
+    /**
+     * 文字列の入力に対する遷移表
+     *
+     * @param automaton 現在のパターンのオートマトン
+     * @return パターンが生成時と異なる場合は null
+     */
+    DfaTable getTable(LexerAutomaton automaton) {
+        return fingerprint.equals(automaton.fingerprint()) ? table : null;
+    }
+
+    /**
+     * バイト列の入力に対する遷移表
+     *
+     * @param automaton 現在のパターンのオートマトン
+     * @return パターンが生成時と異なる場合は null
+     */
+    DfaTable getByteTable(LexerAutomaton automaton) {
+        return byteFingerprint.equals(automaton.fingerprint()) ? byteTable : null;
+    }
+}
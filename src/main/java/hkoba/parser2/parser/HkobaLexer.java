@@ -1,19 +1,37 @@
 package hkoba.parser2.parser;
 
 import hkoba.parser2.ITokenType;
+import hkoba.parser2.LineIndex;
 import hkoba.parser2.TokenContext;
 import hkoba.parser2.TokenData;
+import hkoba.parser2.TokenTypeRegistry;
 import lombok.Getter;
-import lombok.Setter;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class HkobaLexer {
     protected AbstractRegisterer register;
 
+    /**
+     * 登録済みのパターンから作成したテーブル
+     */
+    private LexerTable lexerTable;
+
     private void commitRegister() {
         if (register != null) {
             register.commit(new ArrayList(register.entryMap.values()));
@@ -21,12 +39,24 @@ public class HkobaLexer {
         }
     }
 
+    private LexerTable getLexerTable() {
+        if (frozen) {
+            return lexerTable;
+        }
+        commitRegister();
+        if (lexerTable == null) {
+            lexerTable = new LexerTable();
+        }
+        return lexerTable;
+    }
+
     abstract class AbstractRegisterer<T extends AbstractEntry> {
         private int count = 0;
 
         private Map<Integer, T> entryMap = new HashMap<>();
 
         protected AbstractRegisterer() {
+            checkFrozen();
             commitRegister();
             register = this;
         }
@@ -75,19 +105,150 @@ public class HkobaLexer {
          * @return 先頭から一致した文字数
          */
         int matchSize(String text);
+
+        /**
+         * 指定範囲の先頭からの一致チェック
+         *
+         * @param text
+         * @param from  開始位置
+         * @param limit 終了位置
+         * @return from から一致した文字数
+         */
+        default int matchSize(CharSequence text, int from, int limit) {
+            return matchSize(text.subSequence(from, limit).toString());
+        }
+    }
+
+    /**
+     * 文字列を切り出さずに一致チェックする
+     */
+    @FunctionalInterface
+    public interface IRangeLexer extends ILexer {
+        @Override
+        int matchSize(CharSequence text, int from, int limit);
+
+        @Override
+        default int matchSize(String text) {
+            return matchSize(text, 0, text.length());
+        }
+    }
+
+    /**
+     * text の from の位置から prefix が始まっているかをチェックする
+     *
+     * @param text
+     * @param from
+     * @param limit
+     * @param prefix
+     * @return
+     */
+    protected static boolean startsWith(CharSequence text, int from, int limit, CharSequence prefix) {
+        if (limit - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public class EntryLexer extends AbstractEntry implements ILexer {
-        private final ILexer lexer;
+    /**
+     * 先頭になりうる文字
+     *
+     * @param lexer
+     * @return 不明または空文字列に一致する場合は null
+     */
+    private static LexerAutomaton.CharSet firstOf(ILexer lexer) {
+        if (lexer instanceof EntryLexer) {
+            return ((EntryLexer) lexer).first();
+        }
+        return null;
+    }
+
+    private static LexerAutomaton.CharSet firstOf(List<ILexer> lexerList) {
+        LexerAutomaton.CharSet result = LexerAutomaton.CharSet.EMPTY;
+        for (ILexer lex : lexerList) {
+            LexerAutomaton.CharSet first = firstOf(lex);
+            if (first == null) {
+                return null;
+            }
+            result = result.union(first);
+        }
+        return result;
+    }
+
+    public class EntryLexer extends AbstractEntry implements IRangeLexer {
+        private final IRangeLexer lexer;
+
+        /**
+         * オートマトンにできる場合の式
+         */
+        private final LexerAutomaton.Expr expr;
+
+        /**
+         * バイト列の入力に対する式
+         */
+        private final LexerAutomaton.Expr byteExpr;
+
+        /**
+         * 式がない場合の先頭になりうる文字
+         */
+        private final LexerAutomaton.CharSet first;
+
+        /**
+         * 文字列のみの場合の文字列一覧
+         */
+        private final List<String> literals;
+
+        private EntryLexer(IRangeLexer lexer, LexerAutomaton.CharSet first) {
+            this.lexer = lexer;
+            this.expr = null;
+            this.byteExpr = null;
+            this.first = first;
+            this.literals = null;
+        }
+
+        private EntryLexer(IRangeLexer lexer, LexerAutomaton.Expr expr) {
+            this(lexer, expr, expr);
+        }
 
+        private EntryLexer(IRangeLexer lexer, LexerAutomaton.Expr expr, LexerAutomaton.Expr byteExpr) {
+            this.lexer = lexer;
+            this.expr = expr;
+            this.byteExpr = byteExpr;
+            this.first = null;
+            this.literals = null;
+        }
 
-        private EntryLexer(ILexer lexer) {
+        private EntryLexer(IRangeLexer lexer, List<String> literals) {
+            List<LexerAutomaton.Expr> exprList = new ArrayList<>();
+            List<LexerAutomaton.Expr> byteExprList = new ArrayList<>();
+            literals.forEach(t -> exprList.add(LexerAutomaton.literal(t)));
+            literals.forEach(t -> byteExprList.add(LexerAutomaton.literal(ByteSource.toBytes(t))));
             this.lexer = lexer;
+            this.expr = LexerAutomaton.alt(exprList);
+            this.byteExpr = LexerAutomaton.alt(byteExprList);
+            this.first = null;
+            this.literals = literals;
+        }
+
+        /**
+         * 先頭になりうる文字
+         *
+         * @return 不明または空文字列に一致する場合は null
+         */
+        private LexerAutomaton.CharSet first() {
+            if (expr != null) {
+                return LexerAutomaton.nullable(expr) ? null : LexerAutomaton.first(expr);
+            }
+            return first;
         }
 
         @Override
-        public int matchSize(String text) {
-            return lexer.matchSize(text);
+        public int matchSize(CharSequence text, int from, int limit) {
+            return lexer.matchSize(text, from, limit);
         }
 
         public void value(Function<String, Object> resolver) {
@@ -103,22 +264,20 @@ public class HkobaLexer {
                 lexerList.addAll(Arrays.asList(others));
             }
             entryChild(this);
-            return new EntryLexer(s -> {
-                int ret = matchSize(s);
+            return new EntryLexer((s, from, limit) -> {
+                int ret = matchSize(s, from, limit);
                 if (ret < 0) {
                     return -1;
                 }
-                String text = s.substring(ret);
                 for (ILexer lex : lexerList) {
-                    int len = lex.matchSize(text);
+                    int len = lex.matchSize(s, from + ret, limit);
                     if (len < 0) {
                         return -1;
                     }
                     ret += len;
-                    text = text.substring(len);
                 }
                 return ret;
-            });
+            }, first());
         }
 
         public EntryLexer count(int count) {
@@ -127,12 +286,11 @@ public class HkobaLexer {
 
         public EntryLexer count(int min, int max) {
             entryChild(this);
-            return new EntryLexer(s -> {
+            return new EntryLexer((s, from, limit) -> {
                 int ret = 0;
-                String text = s;
                 int count = 0;
                 for (int i = 0; i < max; i++) {
-                    int len = matchSize(text);
+                    int len = matchSize(s, from + ret, limit);
                     if (len < 0) {
                         break;
                     } else if (len == 0) {
@@ -141,18 +299,17 @@ public class HkobaLexer {
                         break;
                     }
                     ret += len;
-                    text = text.substring(len);
                     count++;
                 }
                 if (count < min) {
                     return -1;
                 }
                 return ret;
-            });
+            }, min > 0 ? first() : null);
         }
     }
 
-    public class TokenPattern implements ILexer {
+    public class TokenPattern implements IRangeLexer {
         private final ITokenType type;
         private final List<ILexer> lexerList;
         private Function<String, Object> resolver;
@@ -167,10 +324,10 @@ public class HkobaLexer {
         }
 
         @Override
-        public int matchSize(String text) {
+        public int matchSize(CharSequence text, int from, int limit) {
             int ret = -1;
             for (ILexer lex : lexerList) {
-                ret = Math.max(lex.matchSize(text), ret);
+                ret = Math.max(lex.matchSize(text, from, limit), ret);
             }
             return ret;
         }
@@ -194,13 +351,33 @@ public class HkobaLexer {
             if (others.length > 0) {
                 lexerList.addAll(Arrays.asList(others));
             }
-            return new EntryLexer(s -> {
+            List<LexerAutomaton.Expr> exprList = new ArrayList<>();
+            List<LexerAutomaton.Expr> byteExprList = new ArrayList<>();
+            List<String> literals = new ArrayList<>();
+            for (ILexer lex : lexerList) {
+                if (lex instanceof EntryLexer && ((EntryLexer) lex).expr != null) {
+                    exprList.add(((EntryLexer) lex).expr);
+                    byteExprList.add(((EntryLexer) lex).byteExpr);
+                    if (literals != null && ((EntryLexer) lex).literals != null) {
+                        literals.addAll(((EntryLexer) lex).literals);
+                    } else {
+                        literals = null;
+                    }
+                }
+            }
+            IRangeLexer result = (s, from, limit) -> {
                 int ret = -1;
                 for (ILexer lex : lexerList) {
-                    ret = Math.max(lex.matchSize(s), ret);
+                    ret = Math.max(lex.matchSize(s, from, limit), ret);
                 }
                 return ret;
-            });
+            };
+            if (exprList.size() == lexerList.size() && literals != null) {
+                return new EntryLexer(result, literals);
+            } else if (exprList.size() == lexerList.size()) {
+                return new EntryLexer(result, LexerAutomaton.alt(exprList), LexerAutomaton.alt(byteExprList));
+            }
+            return new EntryLexer(result, firstOf(lexerList));
         }
 
         protected EntryLexer _t(String text, String... others) {
@@ -208,16 +385,15 @@ public class HkobaLexer {
             textList.add(text);
             if (others.length > 0) {
                 textList.addAll(Arrays.asList(others));
-                textList.sort(Comparator.comparingInt(String::length).reversed());
             }
-            return new EntryLexer(s -> {
-                for (String t : textList) {
-                    if (s.startsWith(t)) {
-                        return t.length();
-                    }
-                }
-                return -1;
-            });
+            // 最長一致をトライ木で探す
+            LiteralTrie.Builder builder = new LiteralTrie.Builder();
+            LiteralTrie.Builder byteBuilder = new LiteralTrie.Builder();
+            textList.forEach(t -> builder.add(t, 0));
+            textList.forEach(t -> byteBuilder.add(ByteSource.toBytes(t), 0));
+            LiteralTrie trie = builder.build();
+            LiteralTrie byteTrie = byteBuilder.build();
+            return new EntryLexer((s, from, limit) -> (s instanceof ByteSource ? byteTrie : trie).longest(s, from, limit), textList);
         }
 
         protected EntryLexer _reg(String regex, String... others) {
@@ -228,19 +404,28 @@ public class HkobaLexer {
                     patternList.add(Pattern.compile(reg));
                 }
             }
-            return new EntryLexer(s -> {
+            List<LexerAutomaton.Expr> exprList = new ArrayList<>();
+            for (Pattern pat : patternList) {
+                LexerAutomaton.Expr expr = LexerAutomaton.parse(pat.pattern());
+                if (expr == null) {
+                    // オートマトンにできないものは個別に処理する
+                    exprList = null;
+                    break;
+                }
+                exprList.add(expr);
+            }
+            return new EntryLexer((s, from, limit) -> {
                 int ret = -1;
                 for (Pattern pat : patternList) {
-                    Matcher matcher = pat.matcher(s);
-                    if (matcher.find()) {
-                        String text = matcher.group();
-                        if (s.startsWith(text)) {
-                            ret = Math.max(ret, text.length());
-                        }
+                    Matcher matcher = s instanceof LexerSource ? ((LexerSource) s).matcher(pat) : pat.matcher(s);
+                    // 先頭からの一致のみを調べる
+                    matcher.region(from, limit);
+                    if (matcher.lookingAt()) {
+                        ret = Math.max(ret, matcher.end() - from);
                     }
                 }
                 return ret;
-            });
+            }, exprList != null ? LexerAutomaton.alt(exprList) : (LexerAutomaton.Expr) null);
         }
 
         protected EntryLexer join(ILexer lexer, ILexer... others) {
@@ -250,19 +435,17 @@ public class HkobaLexer {
             if (others.length > 0) {
                 lexerList.addAll(Arrays.asList(others));
             }
-            return new EntryLexer(s -> {
+            return new EntryLexer((s, from, limit) -> {
                 int ret = 0;
-                String text = s;
                 for (ILexer lex : lexerList) {
-                    int len = lex.matchSize(text);
+                    int len = lex.matchSize(s, from + ret, limit);
                     if (len < 0) {
                         return -1;
                     }
                     ret += len;
-                    text = text.substring(len);
                 }
                 return ret;
-            });
+            }, firstOf(lexer));
         }
 
         @Override
@@ -273,7 +456,118 @@ public class HkobaLexer {
 
     private Map<String, List<TokenPattern>> tokenPatternMap = new HashMap<>();
 
+    /**
+     * 一致しなかった種別
+     */
+    private static final TokenData.TextToken NO_TOKEN = new TokenData.TextToken(ITokenType.CToken.UNKNOWN, null, null, "", null);
+
+    private static final LexerAutomaton.CharSet NON_ASCII = LexerAutomaton.CharSet.range((char) 128, Character.MAX_VALUE);
+
+    /**
+     * 登録されている字句解析の種別名
+     *
+     * @return
+     */
+    Set<String> getTokenNames() {
+        return tokenPatternMap.keySet();
+    }
+
+    /**
+     * 字句解析の種別の先頭になりうる文字
+     *
+     * @param type
+     * @return 全ての文字がなりうる場合は null
+     */
+    LexerAutomaton.CharSet getTypeFirst(ITokenType type) {
+        LexerTable table = getLexerTable();
+        int ix = table.typeIndex(type);
+        return ix < 0 ? LexerAutomaton.CharSet.EMPTY : table.typeFirstList.get(ix);
+    }
+
+    /**
+     * 字句解析のコンテキストの種別のトークンを、別のコンテキストのトークンとして作成する
+     * バッファの場合は字句解析のトークンを作らずに配列から作成する
+     *
+     * @param context 字句解析のコンテキスト
+     * @param type
+     * @param owner   作成するトークンのコンテキスト
+     * @return 一致しなければ null
+     */
+    TokenData.TextToken lexerToken(TokenContext context, ITokenType type, TokenContext owner) {
+        if (context instanceof BufferStream.BufferContext) {
+            BufferStream.BufferContext buffer = (BufferStream.BufferContext) context;
+            int entry = buffer.find(type);
+            return entry >= 0 ? buffer.newToken(entry, owner) : null;
+        }
+        return context.getToken(type).map(t -> copyToken((TokenData.TextToken) t, owner)).orElse(null);
+    }
+
+    /**
+     * 字句解析のコンテキストの文字列のトークンを、別のコンテキストのトークンとして作成する
+     *
+     * @param context 字句解析のコンテキスト
+     * @param text
+     * @param owner   作成するトークンのコンテキスト
+     * @return 一致しなければ null
+     */
+    TokenData.TextToken lexerToken(TokenContext context, String text, TokenContext owner) {
+        if (context instanceof BufferStream.BufferContext) {
+            return ((BufferStream.BufferContext) context).newToken(text, owner);
+        }
+        return context.getToken(text).map(t -> copyToken(t, owner)).orElse(null);
+    }
+
+    private static TokenData.TextToken copyToken(TokenData.TextToken token, TokenContext owner) {
+        return TokenData.TextToken.lazy(token.getType(), owner, token.getEnd(), token::getText, s -> token.getValue());
+    }
+
+    /**
+     * 字句解析のコンテキストに種別のトークンがあるか
+     * バッファの場合はトークンを作成しない
+     *
+     * @param context
+     * @param type
+     * @return
+     */
+    boolean hasLexerToken(TokenContext context, ITokenType type) {
+        if (context instanceof BufferStream.BufferContext) {
+            return ((BufferStream.BufferContext) context).find(type) >= 0;
+        }
+        return context.getToken(type).isPresent();
+    }
+
+    /**
+     * 字句解析のコンテキストに文字列のトークンがあるか
+     * バッファの場合はトークンを作成しない
+     *
+     * @param context
+     * @param text
+     * @return
+     */
+    boolean hasLexerToken(TokenContext context, String text) {
+        if (context instanceof BufferStream.BufferContext) {
+            return ((BufferStream.BufferContext) context).textEnd(text) >= 0;
+        }
+        return context.hasToken(text);
+    }
+
+    /**
+     * 字句解析のコンテキストの位置の ASCII 文字
+     *
+     * @param context
+     * @return 入力の終わり、ASCII 以外、またはこのクラスのコンテキストでない場合は -1
+     */
+    int asciiAt(TokenContext context) {
+        if (context instanceof LexerStream.LexerContext) {
+            return ((LexerStream.LexerContext) context).asciiAt();
+        } else if (context instanceof BufferStream.BufferContext) {
+            return ((BufferStream.BufferContext) context).asciiAt();
+        }
+        return -1;
+    }
+
     public TokenPattern register(ITokenType type, ILexer lexer, ILexer... others) {
+        checkFrozen();
         List<TokenPattern> list = tokenPatternMap.get(type.getTokenName());
         if (list == null) {
             list = new ArrayList<>();
@@ -281,24 +575,293 @@ public class HkobaLexer {
         }
         TokenPattern ret = new TokenPattern(type, lexer, others);
         list.add(ret);
+        lexerTable = null;
         return ret;
     }
 
+    /**
+     * 字句解析用のテーブル
+     */
+    private class LexerTable {
+        /**
+         * トークン種別ごとのパターン一覧
+         */
+        private final List<List<TokenPattern>> typeList = new ArrayList<>();
+
+        /**
+         * トークン種別ごとの先頭のパターンの id
+         * 最後は全パターン数
+         */
+        private final int[] typeStart;
+
+        /**
+         * トークン種別ごとの先頭になりうる文字
+         */
+        private final List<LexerAutomaton.CharSet> typeFirstList = new ArrayList<>();
+
+        /**
+         * 種別の番号ごとの typeList のインデックス
+         * 登録されていない種別は -1
+         */
+        private final int[] typeIndexes;
+
+        /**
+         * パターンの一覧
+         * インデックスがオートマトンの id になる
+         */
+        private final List<TokenPattern> patternList = new ArrayList<>();
+
+        /**
+         * オートマトンにできなかった字句解析
+         */
+        private final List<List<ILexer>> otherList = new ArrayList<>();
+
+        /**
+         * トライ木にできなかった字句解析
+         */
+        private final List<List<ILexer>> restList = new ArrayList<>();
+
+        private final LexerAutomaton automaton;
+
+        /**
+         * 一致に使うオートマトン
+         * 生成した遷移表があればそれを使う
+         */
+        private final IPatternMatcher automatonMatcher;
+
+        private final IPatternMatcher byteAutomatonMatcher;
+
+        /**
+         * 全ての文字列パターンをまとめたトライ木
+         */
+        private final LiteralTrie trie;
+
+        /**
+         * バイト列の入力に対するオートマトン
+         */
+        private final LexerAutomaton byteAutomaton;
+
+        /**
+         * バイト列の入力に対するトライ木
+         */
+        private final LiteralTrie byteTrie;
+
+        /**
+         * パターンごとの先頭になりうる文字
+         * null は全ての位置で候補になる
+         */
+        private final List<LexerAutomaton.CharSet> firstList = new ArrayList<>();
+
+        /**
+         * 先頭の文字ごとの候補となるパターン
+         */
+        private final int[][] asciiCandidates = new int[128][];
+
+        /**
+         * ASCII以外の文字で候補となるパターン
+         */
+        private final int[] otherCandidates;
+
+        /**
+         * 入力の終わりで候補となるパターン
+         */
+        private final int[] anyCandidates;
+
+        private LexerTable() {
+            LexerAutomaton.Builder builder = new LexerAutomaton.Builder();
+            LiteralTrie.Builder trieBuilder = new LiteralTrie.Builder();
+            LexerAutomaton.Builder byteBuilder = new LexerAutomaton.Builder();
+            LiteralTrie.Builder byteTrieBuilder = new LiteralTrie.Builder();
+            List<Integer> startList = new ArrayList<>();
+            Map<Integer, Integer> indexMap = new HashMap<>();
+            tokenPatternMap.forEach((k, p) -> {
+                indexMap.put(TokenTypeRegistry.idOf(k), typeList.size());
+                typeList.add(p);
+                startList.add(patternList.size());
+                LexerAutomaton.CharSet typeFirst = LexerAutomaton.CharSet.EMPTY;
+                for (TokenPattern pat : p) {
+                    int id = patternList.size();
+                    patternList.add(pat);
+                    List<ILexer> others = new ArrayList<>();
+                    List<ILexer> rest = new ArrayList<>();
+                    for (ILexer lex : pat.lexerList) {
+                        if (lex instanceof EntryLexer && ((EntryLexer) lex).expr != null) {
+                            builder.add(id, ((EntryLexer) lex).expr);
+                            byteBuilder.add(id, ((EntryLexer) lex).byteExpr);
+                        } else {
+                            others.add(lex);
+                        }
+                        if (lex instanceof EntryLexer && ((EntryLexer) lex).literals != null) {
+                            ((EntryLexer) lex).literals.forEach(t -> trieBuilder.add(t, id));
+                            ((EntryLexer) lex).literals.forEach(t -> byteTrieBuilder.add(ByteSource.toBytes(t), id));
+                        } else {
+                            rest.add(lex);
+                        }
+                    }
+                    otherList.add(others);
+                    restList.add(rest);
+                    firstList.add(firstOf(pat.lexerList));
+                    typeFirst = typeFirst != null && firstOf(pat.lexerList) != null ? typeFirst.union(firstOf(pat.lexerList)) : null;
+                }
+                typeFirstList.add(typeFirst);
+            });
+            startList.add(patternList.size());
+            typeStart = startList.stream().mapToInt(Integer::intValue).toArray();
+            typeIndexes = new int[indexMap.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1];
+            Arrays.fill(typeIndexes, -1);
+            indexMap.forEach((k, v) -> typeIndexes[k] = v);
+            automaton = builder.build();
+            trie = trieBuilder.build();
+            byteAutomaton = byteBuilder.build();
+            byteTrie = byteTrieBuilder.build();
+            DfaTable table = generatedTables != null ? generatedTables.getTable(automaton) : null;
+            DfaTable byteTable = generatedTables != null ? generatedTables.getByteTable(byteAutomaton) : null;
+            automatonMatcher = table != null ? table : automaton;
+            byteAutomatonMatcher = byteTable != null ? byteTable : byteAutomaton;
+            // 先頭の文字で振り分ける
+            for (int ch = 0; ch < asciiCandidates.length; ch++) {
+                char c = (char) ch;
+                asciiCandidates[ch] = candidates(f -> f.contains(c));
+            }
+            otherCandidates = candidates(f -> f.intersects(NON_ASCII));
+            anyCandidates = candidates(f -> false);
+        }
+
+        private int[] candidates(Predicate<LexerAutomaton.CharSet> filter) {
+            List<Integer> result = new ArrayList<>();
+            for (int i = 0; i < firstList.size(); i++) {
+                if (firstList.get(i) == null || filter.test(firstList.get(i))) {
+                    result.add(i);
+                }
+            }
+            return result.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * 指定した文字から始まりうるか
+         * バイト列の ASCII 以外はどの文字の一部かわからないので、ASCII 以外を含むかで判断する
+         *
+         * @param first
+         * @param ch
+         * @param bytes バイト列の入力か
+         * @return
+         */
+        private boolean startable(LexerAutomaton.CharSet first, char ch, boolean bytes) {
+            if (first == null) {
+                return true;
+            } else if (bytes && ch >= 128) {
+                return first.intersects(NON_ASCII);
+            }
+            return first.contains(ch);
+        }
+
+        /**
+         * 指定したパターンのみで一致した文字数
+         *
+         * @param id
+         * @param text
+         * @param from
+         * @param limit
+         * @return
+         */
+        private int matchSize(int id, CharSequence text, int from, int limit) {
+            LexerAutomaton.CharSet first = firstList.get(id);
+            if (first != null && (from >= limit || !startable(first, text.charAt(from), text instanceof ByteSource))) {
+                return -1;
+            }
+            return patternList.get(id).matchSize(text, from, limit);
+        }
+
+        /**
+         * 指定した文字列がトークン種別の先頭になりうるか
+         *
+         * @param type
+         * @param text
+         * @param bytes
+         * @return
+         */
+        private boolean canStartWith(int type, CharSequence text, boolean bytes) {
+            LexerAutomaton.CharSet first = typeFirstList.get(type);
+            return first == null || (text.length() > 0 && startable(first, text.charAt(0), bytes));
+        }
+
+        /**
+         * typeList のインデックス
+         *
+         * @param type
+         * @return 登録されていない種別は -1
+         */
+        private int typeIndex(ITokenType type) {
+            int id = type.getTypeId();
+            return id < typeIndexes.length ? typeIndexes[id] : -1;
+        }
+
+        /**
+         * パターンごとの一致した文字数
+         *
+         * @param text
+         * @param from
+         * @param limit
+         * @return
+         */
+        private int[] matchSizes(CharSequence text, int from, int limit) {
+            int[] result = new int[patternList.size()];
+            Arrays.fill(result, -1);
+            int[] candidates;
+            char ch = 0;
+            if (from >= limit) {
+                candidates = anyCandidates;
+            } else {
+                ch = text.charAt(from);
+                candidates = ch < 128 ? asciiCandidates[ch] : otherCandidates;
+            }
+            boolean bytes = text instanceof ByteSource;
+            boolean automatonMatched = compiled && (bytes ? byteAutomatonMatcher : automatonMatcher).match(text, from, limit, result);
+            if (!automatonMatched) {
+                // オートマトンの状態数が上限に達した場合もパターンごとに一致させる
+                Arrays.fill(result, -1);
+                (bytes ? byteTrie : trie).match(text, from, limit, result);
+            }
+            for (int id : candidates) {
+                if (ch >= 128 && !startable(firstList.get(id), ch, bytes)) {
+                    continue;
+                }
+                for (ILexer lex : (automatonMatched ? otherList : restList).get(id)) {
+                    result[id] = Math.max(lex.matchSize(text, from, limit), result[id]);
+                }
+            }
+            return result;
+        }
+    }
+
     private class LexerStream {
         private class LexerContext extends TokenContext {
             @Getter
             private final TokenContext.Index index;
 
-            @Getter
-            private final String whiteSpace;
+            /**
+             * 空白の開始位置
+             */
+            private final int whiteSpaceStart;
 
-            private List<TokenData.TextToken> tokenList = new ArrayList<>();
+            /**
+             * 空白とコメント
+             * 参照するまでは null
+             */
+            private String whiteSpace;
+
+            /**
+             * 全トークン
+             * 作成するまでは null
+             */
+            private List<TokenData.TextToken> tokenList;
 
             /**
-             * 登録済みトークンマップ
-             * key: tokenType
+             * 種別ごとのトークン
+             * typeList のインデックスで参照する
+             * 未処理は null、一致しなかった場合は NO_TOKEN
              */
-            private Map<String, TokenData.TextToken> tokenMap = new HashMap<>();
+            private final TokenData.TextToken[] tokens = new TokenData.TextToken[lexerTable.typeList.size()];
 
             /**
              * テキストマップ
@@ -306,50 +869,91 @@ public class HkobaLexer {
              */
             private Map<String, TokenData.TextToken> textMap = new HashMap<>();
 
+            /**
+             * パターンごとの一致した文字数
+             * 種別ごとに調べる場合は null
+             */
+            private int[] sizes;
+
             @Override
             public boolean isEof() {
-                return this.index.getIndex() >= text.length();
-            }
-
-            private LexerContext(String whiteSpace) {
-                this.whiteSpace = whiteSpace;
-                this.index = LexerStream.this.getIndex();
-                // トークンの作成
-                String targetText = text.substring(this.index.getIndex());
-                tokenPatternMap.forEach((k, p) -> {
-                    int ret = -1;
-                    Index end = null;
-                    TokenPattern pattern = null;
-                    for (TokenPattern pat : p) {
-                        int len = pat.matchSize(targetText);
-                        if (len > ret) {
-                            ret = len;
-                            pattern = pat;
-                            end = moveIndex(this.index.getIndex() + len).getIndex();
-                            moveIndex(this.index);
-                        }
-                    }
-                    if (ret >= 0) {
-                        Object value;
-                        String token = targetText.substring(0, ret);
-                        if (pattern.resolver != null) {
-                            value = pattern.resolver.apply(token);
-                        } else {
-                            value = null;
-                        }
-                        tokenList.add(new TokenData.TextToken(pattern.type, this, end, token, value));
-                    }
-                });
-                // キャッシュ作成
-                tokenList.forEach(t -> {
-                    String tp = t.getType().getTokenName();
-                    if (!tokenMap.containsKey(tp) || t.getText().length() > tokenMap.get(tp).getText().length()) {
-                        tokenMap.put(tp, t);
+                return source.isEnd(this.index.getIndex());
+            }
+
+            private LexerContext(int whiteSpaceStart) {
+                this.whiteSpaceStart = whiteSpaceStart;
+                this.index = LexerStream.this.getIndex(LexerStream.this.index);
+                if (!source.isRetained()) {
+                    getWhiteSpace();
+                }
+                if (!lazy) {
+                    // トークンの作成
+                    getTokens();
+                }
+            }
+
+            private int matchSize(int id) {
+                int start = this.index.getIndex();
+                if (sizes == null && document != null) {
+                    // 編集前の結果を使う
+                    sizes = document.matchSizes((DocumentSource) source, start);
+                } else if (sizes == null && (!lazy || compiled)) {
+                    // まとめて調べる
+                    sizes = lexerTable.matchSizes(source, start, source.limit(start));
+                }
+                if (sizes != null) {
+                    return sizes[id];
+                }
+                return lexerTable.matchSize(id, source, start, source.limit(start));
+            }
+
+            /**
+             * 位置の ASCII 文字。入力の終わりや ASCII 以外は -1
+             */
+            private int asciiAt() {
+                int ix = this.index.getIndex();
+                if (source.isEnd(ix)) {
+                    return -1;
+                }
+                char ch = source.charAt(ix);
+                return ch < 128 ? ch : -1;
+            }
+
+            /**
+             * 指定した種別のトークンを作成する
+             *
+             * @param type typeList のインデックス
+             * @return
+             */
+            private TokenData.TextToken matchType(int type) {
+                if (tokens[type] != null) {
+                    return tokens[type] == NO_TOKEN ? null : tokens[type];
+                }
+                int ret = -1;
+                TokenPattern pattern = null;
+                for (int id = lexerTable.typeStart[type]; id < lexerTable.typeStart[type + 1]; id++) {
+                    int len = matchSize(id);
+                    if (len > ret) {
+                        ret = len;
+                        pattern = lexerTable.patternList.get(id);
                     }
-                    if (!textMap.containsKey(t.getText())) {
-                        textMap.put(t.getText(), t);
+                }
+                TokenData.TextToken result = null;
+                if (ret >= 0) {
+                    int start = this.index.getIndex();
+                    int stop = start + ret;
+                    Index end = LexerStream.this.getIndex(stop);
+                    // 値は参照された時点で求める
+                    if (source.isRetained()) {
+                        // 文字列は参照された時点で切り出す
+                        result = TokenData.TextToken.lazy(pattern.type, this, end, () -> source.text(start, stop), pattern.resolver);
+                    } else {
+                        String token = source.text(start, stop);
+                        result = TokenData.TextToken.lazy(pattern.type, this, end, () -> token, pattern.resolver);
                     }
-                });
+                }
+                tokens[type] = result != null ? result : NO_TOKEN;
+                return result;
             }
 
             @Override
@@ -357,11 +961,26 @@ public class HkobaLexer {
                 if (!textMap.containsKey(text)) {
                     // まだチェックをしていない
                     // 無名の可能性あり
-                    moveIndex(this.index);
-                    if (LexerStream.this.text.substring(this.index.getIndex()).startsWith(text)) {
-                        Index end = moveIndex(this.index.getIndex() + text.length()).getIndex();
-                        // 無名クラスは値は null
-                        textMap.put(text, new TokenData.TextToken(ITokenType.CToken.UNKNOWN, this, end, text, null));
+                    int start = this.index.getIndex();
+                    CharSequence key = source.encode(text);
+                    if (startsWith(source, start, source.limit(start), key)) {
+                        TokenData.TextToken result = null;
+                        // 一致する可能性のある種別のみを調べる
+                        // 先頭は一致しているので、長さが同じなら同じ文字列
+                        for (int type = 0; type < lexerTable.typeList.size() && result == null; type++) {
+                            if (lexerTable.canStartWith(type, key, source instanceof ByteSource)) {
+                                TokenData.TextToken token = matchType(type);
+                                if (token != null && token.getEnd().getIndex() == start + key.length()) {
+                                    result = token;
+                                }
+                            }
+                        }
+                        if (result == null) {
+                            Index end = LexerStream.this.getIndex(start + key.length());
+                            // 無名クラスは値は null
+                            result = new TokenData.TextToken(ITokenType.CToken.UNKNOWN, this, end, text, null);
+                        }
+                        textMap.put(text, result);
                     } else {
                         // チェック済みとして null を設定
                         textMap.put(text, null);
@@ -372,7 +991,11 @@ public class HkobaLexer {
 
             @Override
             public Optional<TokenData> getToken(ITokenType type) {
-                return Optional.ofNullable(tokenMap.get(type.getTokenName()));
+                int ix = lexerTable.typeIndex(type);
+                if (ix < 0) {
+                    return Optional.empty();
+                }
+                return Optional.ofNullable(matchType(ix));
             }
 
             @Override
@@ -385,55 +1008,100 @@ public class HkobaLexer {
                 return moveIndex(index).getContext();
             }
 
+            @Override
+            public String getWhiteSpace() {
+                if (whiteSpace == null) {
+                    whiteSpace = source.text(whiteSpaceStart, this.index.getIndex());
+                }
+                return whiteSpace;
+            }
+
+            @Override
+            public void release() {
+                LexerStream.this.release(this.index.getIndex());
+            }
+
+            /**
+             * 破棄した位置のキャッシュを捨てる
+             * トークンから参照されていても、一致しなかった種別や文字列の結果は解放される
+             */
+            private void evict() {
+                Arrays.fill(tokens, null);
+                textMap = new HashMap<>();
+                sizes = null;
+                tokenList = null;
+            }
+
             @Override
             public List<TokenData> getTokens() {
+                if (tokenList == null) {
+                    tokenList = new ArrayList<>();
+                    for (int type = 0; type < lexerTable.typeList.size(); type++) {
+                        TokenData.TextToken token = matchType(type);
+                        if (token != null) {
+                            tokenList.add(token);
+                        }
+                    }
+                }
                 return (List) tokenList;
             }
         }
 
         private int index;
-        private int row;
-        private int col;
 
-        private String text;
+        private final LexerSource source;
 
-        private Map<Integer, LexerContext> contextMap = new HashMap<>();
+        private final LexerTable lexerTable;
 
-        private LexerStream(String text) {
-            this.text = text;
-            index = 0;
-            row = col = 1;
-        }
+        private final Trivia trivia;
 
-        private TokenContext.Index getIndex() {
-            return new TokenContext.Index(index, row, col);
-        }
+        /**
+         * 編集できる入力の場合の字句解析の結果
+         */
+        private final Document document;
 
+        /**
+         * 位置ごとのコンテキスト
+         * 破棄するときは位置の小さいものから取り出す
+         */
+        private final IntMap<LexerContext> contextMap = new IntMap<>();
 
-        private String skipSpace() {
-            int ix = index;
-            while (ix < text.length()) {
-                if (whiteSpaces.indexOf(text.charAt(ix)) < 0) {
-                    break;
-                }
-                ix++;
-            }
-            String result = text.substring(index, ix);
-            moveIndex(ix);
+        private LexerStream(LexerSource source) {
+            this(source, null);
+        }
+
+        private LexerStream(LexerSource source, Document document) {
+            this.source = source;
+            this.document = document;
+            this.lexerTable = getLexerTable();
+            this.trivia = getTrivia();
+            index = 0;
+            lineIndex = new LineIndex(source);
+        }
+
+        /**
+         * 行と列は参照された時点で求める
+         */
+        private final LineIndex lineIndex;
+
+        private TokenContext.Index getIndex(int ix) {
+            return new TokenContext.Index(ix, lineIndex);
+        }
+
+
+        /**
+         * 空白とコメントを読み飛ばす
+         *
+         * @return 読み飛ばす前の位置
+         */
+        private int skipSpace() {
+            int result = index;
+            moveIndex(trivia.skip(source, index));
             return result;
         }
 
         private LexerStream moveIndex(int ix) {
             if (ix > index) {
-                int ex = text.lastIndexOf("\n", ix - 1);
-                if (ex >= index) {
-                    // 改行あり
-                    row += (ix - index) - text.substring(index, ix).replaceAll("\\n", "").length();
-                    col = ix - ex;
-                } else {
-                    // 改行なし
-                    col += (ix - index);
-                }
                 index = ix;
             }
             return this;
@@ -441,13 +1109,22 @@ public class HkobaLexer {
 
         private LexerStream moveIndex(TokenContext.Index ix) {
             index = ix.getIndex();
-            row = ix.getRow();
-            col = ix.getCol();
             return this;
         }
 
+        /**
+         * 指定した位置より前のコンテキストと入力を破棄する
+         *
+         * @param ix
+         */
+        private void release(int ix) {
+            lineIndex.release(ix);
+            contextMap.removeBelow(ix, LexerContext::evict);
+            source.release(ix);
+        }
+
         private LexerContext getContext() {
-            String space = skipSpace();
+            int space = skipSpace();
             LexerContext data = contextMap.get(index);
             if (data == null) {
                 data = new LexerContext(space);
@@ -457,16 +1134,921 @@ public class HkobaLexer {
         }
     }
 
+    /**
+     * 入力全体を先に字句解析して TokenBuffer にまとめる
+     * トークンのオブジェクトは要求された時点で作成する
+     */
+    private class BufferStream {
+        private class BufferContext extends TokenContext {
+            @Getter
+            private final TokenContext.Index index;
+
+            /**
+             * 空白の開始位置
+             */
+            private final int whiteSpaceStart;
+
+            /**
+             * 空白とコメント
+             * 参照するまでは null
+             */
+            private String whiteSpace;
+
+            /**
+             * 先頭のトークン
+             */
+            private final int first;
+
+            /**
+             * 作成したトークン
+             */
+            private final TokenData.TextToken[] tokens;
+
+            /**
+             * テキストマップ
+             * 作成するまでは null
+             */
+            private Map<String, TokenData.TextToken> textMap;
+
+            private List<TokenData> tokenList;
+
+            private BufferContext(int whiteSpaceStart, int group) {
+                this.whiteSpaceStart = whiteSpaceStart;
+                this.index = BufferStream.this.getIndex(BufferStream.this.index);
+                this.first = buffer.groupFirst(group);
+                this.tokens = new TokenData.TextToken[buffer.groupSize(group)];
+            }
+
+            /**
+             * 位置の ASCII 文字。入力の終わりや ASCII 以外は -1
+             */
+            private int asciiAt() {
+                int ix = this.index.getIndex();
+                if (source.isEnd(ix)) {
+                    return -1;
+                }
+                char ch = source.charAt(ix);
+                return ch < 128 ? ch : -1;
+            }
+
+            private TokenData.TextToken token(int ix) {
+                if (tokens[ix] == null) {
+                    tokens[ix] = newToken(first + ix, this);
+                }
+                return tokens[ix];
+            }
+
+            /**
+             * 配列のトークンを指定したコンテキストのトークンとして作成する
+             *
+             * @param entry 配列での位置
+             * @param owner
+             * @return
+             */
+            private TokenData.TextToken newToken(int entry, TokenContext owner) {
+                Index end = BufferStream.this.getIndex(buffer.getEnd(entry));
+                return TokenData.TextToken.lazy(buffer.getType(entry), owner, end, () -> buffer.getText(entry), s -> buffer.getValue(entry));
+            }
+
+            /**
+             * 種別のトークンの配列での位置
+             *
+             * @param type
+             * @return 一致しなければ -1
+             */
+            private int find(ITokenType type) {
+                int typeIndex = lexerTable.typeIndex(type);
+                if (typeIndex >= 0) {
+                    for (int ix = 0; ix < tokens.length; ix++) {
+                        if (buffer.getTypeIndex(first + ix) == typeIndex) {
+                            return first + ix;
+                        }
+                    }
+                }
+                return -1;
+            }
+
+            /**
+             * 文字列に一致した場合の終了位置
+             *
+             * @param text
+             * @return 一致しなければ -1
+             */
+            private int textEnd(String text) {
+                int start = this.index.getIndex();
+                CharSequence key = source.encode(text);
+                return startsWith(source, start, source.limit(start), key) ? start + key.length() : -1;
+            }
+
+            /**
+             * 文字列に一致したトークンの配列での位置
+             * 種別の順に並んでいるので、最初に長さが一致したもの
+             *
+             * @param end 文字列の終了位置
+             * @return 種別のトークンがなければ -1
+             */
+            private int find(int end) {
+                for (int ix = 0; ix < tokens.length; ix++) {
+                    if (buffer.getEnd(first + ix) == end) {
+                        return first + ix;
+                    }
+                }
+                return -1;
+            }
+
+            /**
+             * 文字列のトークンを指定したコンテキストのトークンとして作成する
+             *
+             * @param text
+             * @param owner
+             * @return 一致しなければ null
+             */
+            private TokenData.TextToken newToken(String text, TokenContext owner) {
+                int end = textEnd(text);
+                if (end < 0) {
+                    return null;
+                }
+                int entry = find(end);
+                if (entry >= 0) {
+                    return owner == this ? token(entry - first) : newToken(entry, owner);
+                }
+                // 無名クラスは値は null
+                return new TokenData.TextToken(ITokenType.CToken.UNKNOWN, owner, BufferStream.this.getIndex(end), text, null);
+            }
+
+            @Override
+            public boolean isEof() {
+                return source.isEnd(this.index.getIndex());
+            }
+
+            @Override
+            public String getWhiteSpace() {
+                if (whiteSpace == null) {
+                    whiteSpace = source.text(whiteSpaceStart, this.index.getIndex());
+                }
+                return whiteSpace;
+            }
+
+            @Override
+            public Optional<TokenData.TextToken> getToken(String text) {
+                if (textMap == null) {
+                    textMap = new HashMap<>();
+                }
+                if (!textMap.containsKey(text)) {
+                    textMap.put(text, newToken(text, this));
+                }
+                return Optional.ofNullable(textMap.get(text));
+            }
+
+            @Override
+            public Optional<TokenData> getToken(ITokenType type) {
+                int entry = find(type);
+                return entry >= 0 ? Optional.of(token(entry - first)) : Optional.empty();
+            }
+
+            @Override
+            public TokenContext seek(int index) {
+                return moveIndex(index).getContext();
+            }
+
+            @Override
+            public TokenContext restore(Index index) {
+                return moveIndex(index).getContext();
+            }
+
+            @Override
+            public void release() {
+                contextMap.removeBelow(this.index.getIndex());
+            }
+
+            @Override
+            public List<TokenData> getTokens() {
+                if (tokenList == null) {
+                    tokenList = new ArrayList<>();
+                    for (int ix = 0; ix < tokens.length; ix++) {
+                        tokenList.add(token(ix));
+                    }
+                }
+                return tokenList;
+            }
+        }
+
+        private int index;
+
+        private final TokenBuffer buffer;
+
+        private final LexerSource source;
+
+        private final LexerTable lexerTable;
+
+        private final Trivia trivia;
+
+        /**
+         * 行と列は参照された時点で求める
+         */
+        private final LineIndex lineIndex;
+
+        /**
+         * 位置ごとのコンテキスト
+         * 破棄するときは位置の小さいものから取り出す
+         */
+        private final IntMap<BufferContext> contextMap = new IntMap<>();
+
+        private BufferStream(TokenBuffer buffer, LexerTable lexerTable, Trivia trivia) {
+            this.buffer = buffer;
+            this.source = buffer.getSource();
+            this.lexerTable = lexerTable;
+            this.trivia = trivia;
+            this.lineIndex = new LineIndex(source);
+            index = 0;
+        }
+
+        /**
+         * トークンと文字列の終了位置から到達できる位置を全て字句解析する
+         * 開始位置が to 以降のトークンは字句解析しない
+         *
+         * @param from
+         * @param to
+         * @param literals 種別のない文字列。構文解析で後に続く位置も先に字句解析する
+         */
+        private void lexAll(int from, int to, LiteralTrie literals) {
+            // 位置は from からの相対位置で記録する
+            BitSet reached = new BitSet();
+            reached.set(0);
+            for (int pos = 0; pos >= 0; pos = reached.nextSetBit(pos + 1)) {
+                int start = trivia.skip(source, from + pos);
+                if (start < to && buffer.group(start) < 0) {
+                    lex(start, reached, from);
+                    literals.matchAll(source, start, source.limit(start), len -> reached.set(start + len - from));
+                }
+            }
+        }
+
+        /**
+         * 指定した位置のトークンを全種別について追加する
+         *
+         * @param start
+         * @param reached 終了位置を offset からの相対位置で設定する。不要な場合は null
+         * @param offset
+         * @return 追加したまとまり
+         */
+        private int lex(int start, BitSet reached, int offset) {
+            int first = buffer.size();
+            int[] sizes = lexerTable.matchSizes(source, start, source.limit(start));
+            for (int type = 0; type < lexerTable.typeList.size(); type++) {
+                int ret = -1;
+                int pattern = -1;
+                for (int id = lexerTable.typeStart[type]; id < lexerTable.typeStart[type + 1]; id++) {
+                    if (sizes[id] > ret) {
+                        ret = sizes[id];
+                        pattern = id;
+                    }
+                }
+                if (ret >= 0) {
+                    buffer.add(type, start, start + ret, pattern);
+                    if (reached != null) {
+                        reached.set(start + ret - offset);
+                    }
+                }
+            }
+            buffer.addGroup(start, first);
+            return buffer.group(start);
+        }
+
+        private TokenContext.Index getIndex(int ix) {
+            return new TokenContext.Index(ix, lineIndex);
+        }
+
+        private BufferStream moveIndex(int ix) {
+            if (ix > index) {
+                index = ix;
+            }
+            return this;
+        }
+
+        private BufferStream moveIndex(TokenContext.Index ix) {
+            index = ix.getIndex();
+            return this;
+        }
+
+        private BufferContext getContext() {
+            int space = index;
+            index = trivia.skip(source, index);
+            BufferContext data = contextMap.get(index);
+            if (data == null) {
+                int group = buffer.group(index);
+                if (group < 0) {
+                    // 途中の位置は要求された時点で字句解析する
+                    group = lex(index, null, 0);
+                }
+                data = new BufferContext(space, group);
+                contextMap.put(index, data);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * 編集できる入力
+     * 編集の前後で変わらない位置の字句解析の結果を再利用する
+     */
+    public class Document {
+        /**
+         * 位置ごとの字句解析の結果
+         */
+        private class Record {
+            /**
+             * パターンごとの一致した文字数
+             */
+            private final int[] sizes;
+
+            /**
+             * 字句解析で参照した開始位置からの文字数
+             */
+            private final int extent;
+
+            private Record(int[] sizes, int extent) {
+                this.sizes = sizes;
+                this.extent = extent;
+            }
+        }
+
+        private final StringBuilder text;
+
+        private LexerTable lexerTable;
+
+        /**
+         * 最後に編集した位置より前の結果
+         * key: 開始位置
+         */
+        private final TreeMap<Integer, Record> beforeMap = new TreeMap<>();
+
+        /**
+         * 最後に編集した位置以降の結果
+         * key: 入力の終わりからの文字数
+         */
+        private final TreeMap<Integer, Record> afterMap = new TreeMap<>();
+
+        /**
+         * beforeMap と afterMap の境界
+         */
+        private int gap = 0;
+
+        /**
+         * 参照した文字数の最大
+         */
+        private int maxExtent = 0;
+
+        private Document(String text) {
+            this.text = new StringBuilder(text);
+        }
+
+        /**
+         * 編集を反映する
+         * 編集した範囲を参照した結果のみを破棄し、それ以降の位置はずらして再利用する
+         * 以前に取得したコンテキストは使用できなくなる
+         *
+         * @param offset     編集する位置
+         * @param removedLen 削除する文字数
+         * @param inserted   挿入する文字列
+         */
+        public void applyEdit(int offset, int removedLen, String inserted) {
+            int length = text.length();
+            if (offset < 0 || removedLen < 0 || offset + removedLen > length) {
+                throw new IndexOutOfBoundsException("offset: " + offset + ", removed: " + removedLen);
+            }
+            moveGap(offset);
+            // 編集した位置を参照した結果を破棄する
+            Iterator<Map.Entry<Integer, Record>> it = beforeMap.tailMap(offset - maxExtent, true).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Record> entry = it.next();
+                int extent = entry.getKey() + entry.getValue().extent;
+                if (extent > offset || (extent == offset && offset == length)) {
+                    it.remove();
+                }
+            }
+            // 削除した範囲から始まる結果を破棄する
+            afterMap.subMap(length - offset - removedLen, false, length - offset, true).clear();
+            text.replace(offset, offset + removedLen, inserted);
+        }
+
+        /**
+         * 境界を移動する
+         *
+         * @param offset
+         */
+        private void moveGap(int offset) {
+            int length = text.length();
+            if (offset < gap) {
+                NavigableMap<Integer, Record> moved = beforeMap.tailMap(offset, true);
+                moved.forEach((k, v) -> afterMap.put(length - k, v));
+                moved.clear();
+            } else if (offset > gap) {
+                NavigableMap<Integer, Record> moved = afterMap.tailMap(length - offset, false);
+                moved.forEach((k, v) -> beforeMap.put(length - k, v));
+                moved.clear();
+            }
+            gap = offset;
+        }
+
+        /**
+         * 指定した位置のパターンごとの一致した文字数
+         * 結果がなければ字句解析して記録する
+         *
+         * @param source
+         * @param start
+         * @return
+         */
+        private int[] matchSizes(DocumentSource source, int start) {
+            int length = text.length();
+            TreeMap<Integer, Record> map = start < gap ? beforeMap : afterMap;
+            int key = start < gap ? start : length - start;
+            Record record = map.get(key);
+            if (record == null) {
+                source.track(start);
+                int[] sizes = lexerTable.matchSizes(source, start, source.limit(start));
+                record = new Record(sizes, source.getExtent() - start);
+                maxExtent = Math.max(maxExtent, record.extent);
+                map.put(key, record);
+            }
+            return record.sizes;
+        }
+
+        public String getText() {
+            return text.toString();
+        }
+
+        /**
+         * 現在の入力の先頭のコンテキスト
+         *
+         * @return
+         */
+        public TokenContext getLexerContext() {
+            if (lexerTable != getLexerTable()) {
+                // パターンが変わった
+                lexerTable = getLexerTable();
+                beforeMap.clear();
+                afterMap.clear();
+                maxExtent = 0;
+            }
+            return new LexerStream(new DocumentSource(text), this).getContext();
+        }
+    }
+
+    /**
+     * 編集できる入力を作成する
+     *
+     * @param text
+     * @return
+     */
+    public Document newDocument(String text) {
+        return new Document(text);
+    }
+
+    /**
+     * 入力全体を字句解析してトークンの配列にまとめる
+     *
+     * @param source
+     * @return
+     */
+    private TokenBuffer tokenize(LexerSource source) {
+        LexerTable table = getLexerTable();
+        Trivia trivia = getTrivia();
+        LiteralTrie literals = getLiteralTries().get(source);
+        TokenBuffer buffer = newBuffer(source, table);
+        new BufferStream(buffer, table, trivia).lexAll(0, Integer.MAX_VALUE, literals);
+        buffer.contextFactory = () -> new BufferStream(buffer, table, trivia).getContext();
+        return buffer;
+    }
+
+    /**
+     * 字句解析の種別以外で一致させる文字列
+     * バッファにまとめる場合に、これらの文字列の後の位置も先に字句解析する
+     *
+     * @return
+     */
+    Collection<String> getLiterals() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * getLiterals() の文字列のトライ木
+     */
+    private static final class LiteralTries {
+        private final Collection<String> literals;
+
+        private final LiteralTrie trie;
+
+        private final LiteralTrie byteTrie;
+
+        private LiteralTries(Collection<String> literals) {
+            LiteralTrie.Builder builder = new LiteralTrie.Builder();
+            LiteralTrie.Builder byteBuilder = new LiteralTrie.Builder();
+            literals.forEach(t -> builder.add(t, 0));
+            literals.forEach(t -> byteBuilder.add(ByteSource.toBytes(t), 0));
+            this.literals = literals;
+            this.trie = builder.build();
+            this.byteTrie = byteBuilder.build();
+        }
+
+        private LiteralTrie get(LexerSource source) {
+            return source instanceof ByteSource ? byteTrie : trie;
+        }
+    }
+
+    /**
+     * 文字列の一覧が変わったら作り直す
+     */
+    private volatile LiteralTries literalTries;
+
+    private LiteralTries getLiteralTries() {
+        Collection<String> literals = getLiterals();
+        LiteralTries result = literalTries;
+        if (result == null || result.literals != literals) {
+            result = new LiteralTries(literals);
+            literalTries = result;
+        }
+        return result;
+    }
+
+    private TokenBuffer newBuffer(LexerSource source, LexerTable table) {
+        ITokenType[] patternTypes = new ITokenType[table.patternList.size()];
+        List<Function<String, Object>> resolvers = new ArrayList<>(patternTypes.length);
+        for (int id = 0; id < patternTypes.length; id++) {
+            patternTypes[id] = table.patternList.get(id).type;
+            resolvers.add(table.patternList.get(id).resolver);
+        }
+        return new TokenBuffer(source, patternTypes, resolvers);
+    }
+
+    /**
+     * 区切り文字の直後で入力を分割し、分割ごとに並列に字句解析して1つのバッファにまとめる
+     * 分割の境界をまたぐトークンの先の位置は、要求された時点で字句解析する
+     *
+     * @param source
+     * @param chunkSource 分割ごとの入力を作成する。Matcher のキャッシュはスレッド間で共有できない
+     * @param pool
+     * @return
+     */
+    private TokenBuffer tokenize(LexerSource source, Supplier<LexerSource> chunkSource, ForkJoinPool pool) {
+        LexerTable table = getLexerTable();
+        Trivia trivia = getTrivia();
+        LiteralTrie literals = getLiteralTries().get(source);
+        List<ForkJoinTask<TokenBuffer>> taskList = new ArrayList<>();
+        int length = source.length();
+        int from = 0;
+        while (from < length) {
+            int to = (int) Math.min(Math.max((long) from + chunkSize, from + 1), length);
+            while (to < length && source.charAt(to - 1) != syncDelimiter) {
+                to++;
+            }
+            int chunkFrom = from;
+            int chunkTo = to < length ? to : Integer.MAX_VALUE;
+            TokenBuffer chunk = newBuffer(chunkSource.get(), table);
+            taskList.add(pool.submit(() -> {
+                new BufferStream(chunk, table, trivia).lexAll(chunkFrom, chunkTo, literals);
+                return chunk;
+            }));
+            from = to;
+        }
+        TokenBuffer buffer = newBuffer(source, table);
+        for (ForkJoinTask<TokenBuffer> task : taskList) {
+            buffer.append(task.join());
+        }
+        if (taskList.isEmpty()) {
+            new BufferStream(buffer, table, trivia).lexAll(0, Integer.MAX_VALUE, literals);
+        }
+        buffer.contextFactory = () -> new BufferStream(buffer, table, trivia).getContext();
+        return buffer;
+    }
+
+    public TokenBuffer tokenize(String text) {
+        return tokenize(new LexerSource(text));
+    }
+
+    public TokenBuffer tokenize(ByteBuffer buffer) {
+        return tokenize(new ByteSource(buffer));
+    }
+
+    /**
+     * 大きな入力を syncDelimiter の直後で分割して並列に字句解析する
+     *
+     * @param text
+     * @param pool
+     * @return
+     */
+    public TokenBuffer tokenize(String text, ForkJoinPool pool) {
+        return tokenize(new LexerSource(text), () -> new LexerSource(text), pool);
+    }
+
+    /**
+     * 大きな入力を syncDelimiter の直後で分割して並列に字句解析する
+     * syncDelimiter は ASCII の文字とすること
+     *
+     * @param buffer
+     * @param pool
+     * @return
+     */
+    public TokenBuffer tokenize(ByteBuffer buffer, ForkJoinPool pool) {
+        ByteBuffer input = buffer.slice();
+        return tokenize(new ByteSource(input), () -> new ByteSource(input.duplicate()), pool);
+    }
+
+    /**
+     * 入力の種類に応じて字句解析する
+     *
+     * @param source
+     * @return
+     */
+    private TokenContext getLexerContext(LexerSource source) {
+        if (buffered && source.isRetained()) {
+            return tokenize(source).getContext();
+        }
+        return new LexerStream(source).getContext();
+    }
+
     @Getter
-    @Setter
     private String whiteSpaces = " \t\r\n";
 
+    /**
+     * コメントの開始と終了の文字列
+     * 行コメントは終了が null
+     */
+    private final List<String[]> commentList = new ArrayList<>();
+
+    /**
+     * 空白とコメントの判定
+     * 変更されたら null
+     */
+    private Trivia trivia;
+
+    public void setWhiteSpaces(String whiteSpaces) {
+        checkFrozen();
+        this.whiteSpaces = whiteSpaces;
+        trivia = null;
+    }
+
+    /**
+     * 行の終わりまでのコメントを登録する
+     *
+     * @param start 開始文字列
+     */
+    public void addLineComment(String start) {
+        addComment(start, null);
+    }
+
+    /**
+     * 終了文字列までのコメントを登録する
+     *
+     * @param start 開始文字列
+     * @param end   終了文字列
+     */
+    public void addBlockComment(String start, String end) {
+        if (end == null || end.isEmpty()) {
+            throw new IllegalArgumentException("No comment end");
+        }
+        addComment(start, end);
+    }
+
+    private void addComment(String start, String end) {
+        if (start == null || start.isEmpty()) {
+            throw new IllegalArgumentException("No comment start");
+        }
+        checkFrozen();
+        commentList.add(new String[]{start, end});
+        trivia = null;
+    }
+
+    private Trivia getTrivia() {
+        if (!frozen && trivia == null) {
+            trivia = new Trivia(whiteSpaces, commentList);
+        }
+        return trivia;
+    }
+
+    /**
+     * true の場合は文法を変更できない
+     * 変更が反映されたテーブルを複数のスレッドから参照できる
+     */
+    @Getter
+    private volatile boolean frozen = false;
+
+    /**
+     * 文法を確定する
+     * 登録と設定の変更を禁止し、解析に使うテーブルを作成しておく
+     * 解析ごとの状態は getContext() で作るコンテキストが持つので、確定した後は複数のスレッドで共有できる
+     *
+     * @return
+     */
+    public synchronized HkobaLexer freeze() {
+        if (!frozen) {
+            prepare();
+            frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * 解析に使うテーブルを作成する
+     */
+    void prepare() {
+        getLexerTable();
+        getTrivia();
+        getLiteralTries();
+    }
+
+    /**
+     * 確定した文法の変更を禁止する
+     */
+    protected void checkFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Grammar is frozen");
+        }
+    }
+
+    /**
+     * true の場合は文字列と正規表現をひとつのオートマトンにまとめて字句解析する
+     * 選択や省略で一致する長さが変わりうる正規表現はオートマトンにまとめず、個別に一致させる
+     */
+    @Getter
+    private boolean compiled = false;
+
+    public void setCompiled(boolean compiled) {
+        checkFrozen();
+        this.compiled = compiled;
+    }
+
+    /**
+     * LexerGenerator で生成した遷移表
+     * パターンが生成時と異なる場合は使用しない
+     */
+    @Getter
+    private GeneratedTables generatedTables;
+
+    public void setGeneratedTables(GeneratedTables generatedTables) {
+        checkFrozen();
+        this.generatedTables = generatedTables;
+        lexerTable = null;
+    }
+
+    /**
+     * 遷移表を生成するためのオートマトン
+     *
+     * @param bytes バイト列の入力に対するものか
+     * @return
+     */
+    LexerAutomaton getAutomaton(boolean bytes) {
+        LexerTable table = getLexerTable();
+        return bytes ? table.byteAutomaton : table.automaton;
+    }
+
+    /**
+     * true の場合はトークン種別を要求された時点で字句解析する
+     * getTokens() で全ての種別を字句解析する
+     */
+    @Getter
+    private boolean lazy = false;
+
+    public void setLazy(boolean lazy) {
+        checkFrozen();
+        this.lazy = lazy;
+    }
+
+    /**
+     * Reader から読み込む場合に字句解析で先読みする文字数
+     * これより長いトークンは途中までとなる
+     */
+    @Getter
+    private int lookahead = 4096;
+
+    public void setLookahead(int lookahead) {
+        checkFrozen();
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * true の場合は入力全体を先に字句解析して TokenBuffer にまとめる
+     * Reader からの入力には使用しない
+     */
+    @Getter
+    private boolean buffered = false;
+
+    public void setBuffered(boolean buffered) {
+        checkFrozen();
+        this.buffered = buffered;
+    }
+
+    /**
+     * 並列に字句解析する場合の区切り文字
+     * 区切り文字の直後で分割するので、その位置からトークンが始まる文法であること
+     */
+    @Getter
+    private char syncDelimiter = '\n';
+
+    public void setSyncDelimiter(char syncDelimiter) {
+        checkFrozen();
+        this.syncDelimiter = syncDelimiter;
+    }
+
+    /**
+     * 並列に字句解析する場合に分割する文字数の目安
+     */
+    @Getter
+    private int chunkSize = 1 << 20;
+
+    public void setChunkSize(int chunkSize) {
+        checkFrozen();
+        this.chunkSize = chunkSize;
+    }
+
     public TokenContext getLexerContext(String text) {
-        commitRegister();
-        return new LexerStream(text).getContext();
+        return getLexerContext(new LexerSource(text));
+    }
+
+    /**
+     * Reader から必要な分だけ読み込んで字句解析する
+     * TokenContext#release() で通知した位置より前は破棄する
+     * 位置は int なので、Integer.MAX_VALUE 文字を超える入力は読み込んだ時点で例外とする
+     *
+     * @param reader
+     * @return
+     */
+    public TokenContext getLexerContext(Reader reader) {
+        return new LexerStream(new ReaderSource(reader, lookahead)).getContext();
+    }
+
+    /**
+     * メモリマップしたファイルを文字列に読み込まずに字句解析する
+     *
+     * @param channel
+     * @param charset
+     * @return
+     * @throws IOException
+     */
+    public TokenContext getLexerContext(FileChannel channel, Charset charset) throws IOException {
+        return getLexerContext(new MappedSource(channel, charset, lookahead));
+    }
+
+    /**
+     * UTF-8 のバイト列を復号せずに字句解析する
+     * 位置はバイト単位となり、トークンの文字列は参照された時点で復号する
+     *
+     * @param buffer
+     * @return
+     */
+    public TokenContext getLexerContext(ByteBuffer buffer) {
+        return getLexerContext(new ByteSource(buffer));
     }
 
     public TokenContext getContext(String text) {
         return getLexerContext(text);
     }
+
+    public TokenContext getContext(ByteBuffer buffer) {
+        return getLexerContext(buffer);
+    }
+
+    public TokenContext getContext(byte[] bytes) {
+        return getContext(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reader から必要な分だけ読み込んで解析する
+     * 読み込んだ入力とメモを破棄するのは TokenContext#release() を呼んだ場合のみで、
+     * 構文解析では文法が cut() を使う場合に限られる。使わない場合のメモリは入力の長さに比例する
+     * Integer.MAX_VALUE 文字を超える入力は読み込んだ時点で例外とする
+     *
+     * @param reader
+     * @return
+     */
+    public TokenContext getContext(Reader reader) {
+        return getLexerContext(reader);
+    }
+
+    public TokenContext getContext(TokenBuffer buffer) {
+        return buffer.getContext();
+    }
+
+    public TokenContext getContext(Document document) {
+        return document.getLexerContext();
+    }
+
+    public TokenContext getContext(FileChannel channel, Charset charset) throws IOException {
+        return getLexerContext(channel, charset);
+    }
+
+    public TokenContext getContext(FileChannel channel) throws IOException {
+        return getContext(channel, StandardCharsets.UTF_8);
+    }
+
+    public TokenContext getContext(Path path, Charset charset) throws IOException {
+        // マップはチャネルを閉じても有効
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return getContext(channel, charset);
+        }
+    }
+
+    public TokenContext getContext(Path path) throws IOException {
+        return getContext(path, StandardCharsets.UTF_8);
+    }
 }
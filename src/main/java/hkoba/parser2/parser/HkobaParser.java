@@ -3,12 +3,23 @@ package hkoba.parser2.parser;
 import hkoba.parser2.ITokenType;
 import hkoba.parser2.TokenContext;
 import hkoba.parser2.TokenData;
+import lombok.Getter;
 import lombok.ToString;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class HkobaParser extends HkobaLexer {
     /**
@@ -24,6 +35,46 @@ public class HkobaParser extends HkobaLexer {
          * @return マッチしなければnull
          */
         List<TokenData> matchToken(TokenContext context, ITokenType selfType);
+
+        /**
+         * マッチしたトークンを out の末尾に追加する
+         * 繰り返しや連結で途中のリストを作らずに済む
+         *
+         * @param context  コンテキスト
+         * @param selfType 自己参照の場合は種別が入る。nullだと自己参照ではない
+         * @param out      マッチしなければ変更しない
+         * @return マッチしたか
+         */
+        default boolean matchToken(TokenContext context, ITokenType selfType, List<TokenData> out) {
+            List<TokenData> ret = matchToken(context, selfType);
+            if (ret == null) {
+                return false;
+            }
+            out.addAll(ret);
+            return true;
+        }
+    }
+
+    /**
+     * out に追加したトークンの次のコンテキスト
+     *
+     * @param context 追加する前のコンテキスト
+     * @param out
+     * @param mark    追加する前の out の長さ
+     * @return
+     */
+    private static TokenContext nextContext(TokenContext context, List<TokenData> out, int mark) {
+        return out.size() > mark ? out.get(out.size() - 1).nextContext() : context;
+    }
+
+    /**
+     * out を指定した長さに戻す
+     *
+     * @param out
+     * @param mark
+     */
+    private static void truncate(List<TokenData> out, int mark) {
+        out.subList(mark, out.size()).clear();
     }
 
     public abstract class AbstractParser extends AbstractEntry implements IParser {
@@ -44,27 +95,37 @@ public class HkobaParser extends HkobaLexer {
         public AbstractParser count(int min, int max) {
             entryChild(this);
             AbstractParser self = this;
-            return new ParserEntry((context, selfType) -> {
-                List<TokenData> result = new ArrayList<>();
-                int count = 0;
-                TokenContext ctx = context;
-                for (int i = 0; i < max; i++) {
-                    List<TokenData> ret = self.matchToken(ctx, i == 0 ? selfType : null);
-                    if (ret == null) {
-                        break;
-                    } else if (ret.size() == 0) {
-                        // これ以上は同じ
-                        count = max;
-                        break;
-                    }
-                    count++;
-                    result.addAll(ret);
-                    ctx = ret.get(ret.size() - 1).nextContext();
+            return new ParserEntry(new IParser() {
+                @Override
+                public List<TokenData> matchToken(TokenContext context, ITokenType selfType) {
+                    List<TokenData> result = new ArrayList<>();
+                    return matchToken(context, selfType, result) ? result : null;
                 }
-                if (count < min) {
-                    return null;
+
+                @Override
+                public boolean matchToken(TokenContext context, ITokenType selfType, List<TokenData> out) {
+                    // 繰り返しごとにリストを作らず out に追加する
+                    int mark = out.size();
+                    int count = 0;
+                    TokenContext ctx = context;
+                    for (int i = 0; i < max; i++) {
+                        int before = out.size();
+                        if (!self.matchToken(ctx, i == 0 ? selfType : null, out)) {
+                            break;
+                        } else if (out.size() == before) {
+                            // これ以上は同じ
+                            count = max;
+                            break;
+                        }
+                        count++;
+                        ctx = nextContext(ctx, out, before);
+                    }
+                    if (count < min) {
+                        truncate(out, mark);
+                        return false;
+                    }
+                    return true;
                 }
-                return result;
             });
         }
 
@@ -76,6 +137,12 @@ public class HkobaParser extends HkobaLexer {
     public class ParserEntry extends AbstractParser implements CharSequence {
         private final List<IParser> parserList = new ArrayList<>();
 
+        /**
+         * 候補ごとの先頭
+         * テーブルを作成するまでは null
+         */
+        private FirstSet[] firsts;
+
         private ParserEntry(IParser parser, IParser... others) {
             entryChild(parser, others);
             parserList.add(parser);
@@ -86,24 +153,34 @@ public class HkobaParser extends HkobaLexer {
 
         @Override
         public List<TokenData> matchToken(TokenContext context, ITokenType selfType) {
-            List<TokenData> result = null;
-            TokenContext.Index lastEnd = null;
-            for (IParser parser : parserList) {
-                List<TokenData> ret = parser.matchToken(context, selfType);
-                if (ret != null) {
-                    TokenContext.Index end;
-                    if (ret.size() > 0) {
-                        end = ret.get(ret.size() - 1).getEnd();
-                    } else {
-                        end = context.getIndex();
-                    }
-                    if (result == null || end.getIndex() > lastEnd.getIndex()) {
-                        result = ret;
+            List<TokenData> result = new ArrayList<>();
+            return matchToken(context, selfType, result) ? result : null;
+        }
+
+        @Override
+        public boolean matchToken(TokenContext context, ITokenType selfType, List<TokenData> out) {
+            // 最も長く一致したものを out に残す
+            int mark = out.size();
+            boolean matched = false;
+            int lastEnd = -1;
+            for (int i = 0; i < parserList.size(); i++) {
+                if (selfType == null && firsts != null && !firsts[i].test(context)) {
+                    // 先頭が一致しない
+                    continue;
+                }
+                int before = out.size();
+                if (parserList.get(i).matchToken(context, selfType, out)) {
+                    int end = (out.size() > before ? out.get(out.size() - 1).getEnd() : context.getIndex()).getIndex();
+                    if (!matched || end > lastEnd) {
+                        out.subList(mark, before).clear();
+                        matched = true;
                         lastEnd = end;
+                    } else {
+                        truncate(out, before);
                     }
                 }
             }
-            return result;
+            return matched;
         }
 
         @Override
@@ -173,18 +250,32 @@ public class HkobaParser extends HkobaLexer {
         @Override
         public List<TokenData> matchToken(TokenContext context, ITokenType selfType) {
             List<TokenData> result = new ArrayList<>();
+            return matchToken(context, selfType, result) ? result : null;
+        }
+
+        @Override
+        public boolean matchToken(TokenContext context, ITokenType selfType, List<TokenData> out) {
+            int mark = out.size();
+            if (!matchPattern(context, selfType, out)) {
+                truncate(out, mark);
+                return false;
+            }
+            return true;
+        }
+
+        private boolean matchPattern(TokenContext context, ITokenType selfType, List<TokenData> result) {
             TokenContext ctx = context;
             ITokenType self = selfType;
             for (CharSequence pat : patternList) {
                 if (pat instanceof ITokenType) {
                     if (self != null && !self.isSame((ITokenType) pat)) {
                         // 一致しないので処理しない
-                        return null;
+                        return false;
                     }
                     Optional<TokenData> ret = ctx.getToken((ITokenType) pat);
                     if (!ret.isPresent()) {
                         // 一致しない
-                        return null;
+                        return false;
                     }
                     if (pat instanceof ITokenType.NamedToken) {
                         // 名前付き
@@ -200,28 +291,195 @@ public class HkobaParser extends HkobaLexer {
                     ctx = ret.get().nextContext();
                 } else if (self != null) {
                     // 自己参照のみが対象
-                    return null;
+                    return false;
+                } else if (pat == CUT) {
+                    // ここより前には戻らない
+                    // 破棄するのは規則の結果が決まった後
+                    ((ParserStream.ParserContext) ctx).cut();
                 } else if (pat instanceof IParser) {
-                    List<TokenData> ret = ((IParser) pat).matchToken(ctx, self);
-                    if (ret == null) {
-                        return null;
-                    } else if (ret.size() > 0) {
-                        result.addAll(ret);
-                        ctx = ret.get(ret.size() - 1).nextContext();
+                    int before = result.size();
+                    if (!((IParser) pat).matchToken(ctx, self, result)) {
+                        return false;
                     }
+                    ctx = nextContext(ctx, result, before);
                 } else {
                     // 文字列とする
                     Optional<TokenData.TextToken> ret = context.getToken(pat.toString());
                     if (!ret.isPresent()) {
-                        return null;
+                        return false;
                     }
                     result.add(ret.get());
                     ctx = ret.get().nextContext();
                 }
                 self = null;
             }
+            return true;
+        }
+    }
+
+    /**
+     * 二項演算子
+     */
+    private static class Operator {
+        private final CharSequence symbol;
+
+        /**
+         * 大きいほど強く結合する
+         */
+        private final int precedence;
+
+        /**
+         * 右結合か
+         */
+        private final boolean right;
+
+        private Operator(CharSequence symbol, int precedence, boolean right) {
+            this.symbol = symbol;
+            this.precedence = precedence;
+            this.right = right;
+        }
+
+        private Optional<? extends TokenData> match(TokenContext context) {
+            if (symbol instanceof ITokenType) {
+                return context.getToken((ITokenType) symbol);
+            }
+            return context.getToken(symbol.toString());
+        }
+    }
+
+    /**
+     * 演算子の優先順位で結合する
+     * 被演算子と演算子を交互に読み、優先順位と結合性に従って一度で木を作る
+     * 作る木は (左辺, 演算子, 右辺) を子に持つノードの種別のトークンになる
+     */
+    public class OperatorEntry extends AbstractParser implements CharSequence {
+        private final ITokenType type;
+
+        private final ITokenType operand;
+
+        private final List<Operator> operatorList = new ArrayList<>();
+
+        /**
+         * 途中のノードの値を求める処理
+         */
+        private Function<ParserArgs, Object> resolver;
+
+        private OperatorEntry(ITokenType type, ITokenType operand) {
+            this.type = type;
+            this.operand = operand;
+        }
+
+        /**
+         * 左結合の演算子を登録する
+         *
+         * @param precedence 大きいほど強く結合する
+         * @param symbol     文字列または字句解析の種別
+         * @param others
+         * @return
+         */
+        public OperatorEntry left(int precedence, CharSequence symbol, CharSequence... others) {
+            return add(precedence, false, symbol, others);
+        }
+
+        /**
+         * 右結合の演算子を登録する
+         *
+         * @param precedence 大きいほど強く結合する
+         * @param symbol     文字列または字句解析の種別
+         * @param others
+         * @return
+         */
+        public OperatorEntry right(int precedence, CharSequence symbol, CharSequence... others) {
+            return add(precedence, true, symbol, others);
+        }
+
+        private OperatorEntry add(int precedence, boolean right, CharSequence symbol, CharSequence... others) {
+            operatorList.add(new Operator(symbol, precedence, right));
+            for (CharSequence other : others) {
+                operatorList.add(new Operator(other, precedence, right));
+            }
+            return this;
+        }
+
+        @Override
+        public void value(Function<ParserArgs, Object> resolver) {
+            this.resolver = resolver;
+            super.value(resolver);
+        }
+
+        @Override
+        public int length() {
+            return 0;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return 0;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return null;
+        }
+
+        @Override
+        public List<TokenData> matchToken(TokenContext context, ITokenType selfType) {
+            if (selfType != null) {
+                // 左再帰ではない
+                return null;
+            }
+            return climb(context, Integer.MIN_VALUE);
+        }
+
+        /**
+         * 指定した優先順位以上の演算子で結合する
+         *
+         * @param context
+         * @param minPrecedence
+         * @return 最上位のノードの子。演算子がなければ被演算子のみ。一致しなければ null
+         */
+        private List<TokenData> climb(TokenContext context, int minPrecedence) {
+            Optional<TokenData> first = context.getToken(operand);
+            if (!first.isPresent()) {
+                return null;
+            }
+            List<TokenData> result = new ArrayList<>();
+            result.add(first.get());
+            TokenData lhs = first.get();
+            while (true) {
+                // 最も長く一致する演算子
+                TokenContext next = lhs.nextContext();
+                Operator op = null;
+                TokenData opToken = null;
+                for (Operator o : operatorList) {
+                    Optional<? extends TokenData> ret = o.match(next);
+                    if (ret.isPresent() && (opToken == null || ret.get().getEnd().getIndex() > opToken.getEnd().getIndex())) {
+                        op = o;
+                        opToken = ret.get();
+                    }
+                }
+                if (op == null || op.precedence < minPrecedence) {
+                    break;
+                }
+                List<TokenData> rhs = climb(opToken.nextContext(), op.right ? op.precedence : op.precedence + 1);
+                if (rhs == null) {
+                    // 演算子は含めない
+                    break;
+                }
+                result = new ArrayList<>(Arrays.asList(lhs, opToken, toToken(opToken.nextContext(), rhs)));
+                lhs = new TokenData.NodeToken(type, context, result, resolver);
+            }
             return result;
         }
+
+        private TokenData toToken(TokenContext context, List<TokenData> children) {
+            return children.size() == 1 ? children.get(0) : new TokenData.NodeToken(type, context, children, resolver);
+        }
     }
 
     /**
@@ -242,30 +500,429 @@ public class HkobaParser extends HkobaLexer {
         private String varName;
 
         public NamedTextToken(TextToken src, String name) {
-            super(src.getType(), src.nextContext(), src.getEnd(), src.getText(), src.getValue());
+            super(src, src.nextContext());
             this.varName = name;
         }
     }
 
+    /**
+     * カットの位置を表すパターン
+     */
+    private static final class CutMarker implements CharSequence {
+        @Override
+        public int length() {
+            return 0;
+        }
+
+        @Override
+        public char charAt(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "";
+        }
+    }
+
+    private static final CharSequence CUT = new CutMarker();
+
+    /**
+     * 一致しなかった、または処理中の規則のメモ
+     */
+    private static final Object NO_MATCH = new Object();
+
+    /**
+     * パターンの先頭になりうる字句解析の種別と文字列
+     * 現在の位置でどれも一致しない候補は調べずに済ませる
+     */
+    private static final class FirstSet {
+        /**
+         * 先頭がわからない、または空に一致しうる
+         */
+        private static final FirstSet ANY = new FirstSet(true, new ITokenType[0], new String[0], null);
+
+        private final boolean any;
+
+        private final ITokenType[] types;
+
+        private final String[] texts;
+
+        /**
+         * 先頭になりうる ASCII 文字
+         */
+        private final boolean[] ascii;
+
+        private FirstSet(boolean any, ITokenType[] types, String[] texts, boolean[] ascii) {
+            this.any = any;
+            this.types = types;
+            this.texts = texts;
+            this.ascii = ascii;
+        }
+
+        /**
+         * 指定した位置から一致する可能性があるか
+         *
+         * @param context
+         * @return 構文解析のコンテキストでない場合は true
+         */
+        private boolean test(TokenContext context) {
+            if (any || !(context instanceof ParserStream.ParserContext)) {
+                return true;
+            }
+            int ch = ((ParserStream.ParserContext) context).asciiAt();
+            if (ch >= 0 && !ascii[ch]) {
+                // 先頭の文字で除外する
+                return false;
+            }
+            return ((ParserStream.ParserContext) context).hasLexerToken(types, texts);
+        }
+    }
+
+    /**
+     * 先頭の計算中の値
+     */
+    private static final class First {
+        private boolean any = false;
+
+        /**
+         * 何にも一致せずに終わりうるか
+         */
+        private boolean nullable = false;
+
+        private final Set<String> typeNames = new HashSet<>();
+
+        private final Set<String> texts = new HashSet<>();
+
+        /**
+         * 追加する
+         *
+         * @param other
+         * @return 変更されたか
+         */
+        private boolean addAll(First other) {
+            boolean changed = other.any && !any;
+            any |= other.any;
+            changed |= typeNames.addAll(other.typeNames);
+            changed |= texts.addAll(other.texts);
+            return changed;
+        }
+    }
+
+    /**
+     * 構文解析用のテーブル
+     * 字句解析とノードの種別に連番を振り、位置ごとのメモを配列で持てるようにする
+     */
+    private class ParserTable {
+        /**
+         * 種別名ごとの番号
+         */
+        private final Map<String, Integer> ruleIdMap = new HashMap<>();
+
+        /**
+         * 種別の番号ごとの規則の番号
+         * 登録されていない種別は -1
+         */
+        private final int[] ruleIds;
+
+        /**
+         * 番号ごとのノードのパターン
+         * ノードでない場合は null
+         */
+        private final List<List<NodePattern>> patternList = new ArrayList<>();
+
+        /**
+         * 番号ごとの種となるパターン
+         * 自己参照から始まるパターンを除く
+         */
+        private final List<List<NodePattern>> seedList = new ArrayList<>();
+
+        /**
+         * 番号ごとの左再帰で種を伸ばすパターン
+         * 自己参照から始まるかわからないパターンは両方に含める
+         */
+        private final List<List<NodePattern>> growList = new ArrayList<>();
+
+        /**
+         * 番号ごとの種別
+         */
+        private final List<ITokenType> typeList = new ArrayList<>();
+
+        /**
+         * パターンで使われている文字列
+         */
+        private final Set<String> literals = new HashSet<>();
+
+        private ParserTable() {
+            getTokenNames().forEach(name -> addRule(name, null));
+            nodePatternMap.forEach(this::addRule);
+            nodePatternMap.values().forEach(list -> list.forEach(pat -> addLiterals(pat.parser)));
+            computeFirsts();
+            for (int id = 0; id < typeList.size(); id++) {
+                List<NodePattern> seeds = new ArrayList<>();
+                List<NodePattern> grows = new ArrayList<>();
+                if (patternList.get(id) != null) {
+                    for (NodePattern pat : patternList.get(id)) {
+                        Boolean left = pat.isLeftRecursive();
+                        if (left == null || !left) {
+                            seeds.add(pat);
+                        }
+                        if (left == null || left) {
+                            grows.add(pat);
+                        }
+                    }
+                }
+                seedList.add(seeds);
+                growList.add(grows);
+            }
+            ruleIds = new int[typeList.stream().mapToInt(ITokenType::getTypeId).max().orElse(-1) + 1];
+            Arrays.fill(ruleIds, -1);
+            ruleIdMap.forEach((name, id) -> ruleIds[typeList.get(id).getTypeId()] = id);
+        }
+
+        /**
+         * 規則の番号
+         *
+         * @param type
+         * @return 登録されていない種別は -1
+         */
+        private int ruleId(ITokenType type) {
+            int id = type.getTypeId();
+            return id < ruleIds.length ? ruleIds[id] : -1;
+        }
+
+        /**
+         * 規則の番号ごとの先頭
+         */
+        private final List<First> firstList = new ArrayList<>();
+
+        /**
+         * 規則ごとの先頭を変化がなくなるまで求め、パターンと候補に設定する
+         */
+        private void computeFirsts() {
+            Set<String> lexerNames = getTokenNames();
+            for (ITokenType type : typeList) {
+                First first = new First();
+                if (lexerNames.contains(type.getTokenName())) {
+                    first.typeNames.add(type.getTokenName());
+                }
+                firstList.add(first);
+            }
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int id = 0; id < typeList.size(); id++) {
+                    if (patternList.get(id) != null) {
+                        for (NodePattern pat : patternList.get(id)) {
+                            First first = firstOf(pat.parser);
+                            pat.first = toFirstSet(first);
+                            changed |= firstList.get(id).addAll(first);
+                        }
+                    }
+                }
+            }
+        }
+
+        private FirstSet toFirstSet(First first) {
+            if (first.any || first.nullable) {
+                return FirstSet.ANY;
+            }
+            ITokenType[] types = first.typeNames.stream().map(ITokenType.CToken::from).toArray(ITokenType[]::new);
+            boolean[] ascii = new boolean[128];
+            for (ITokenType type : types) {
+                LexerAutomaton.CharSet chars = getTypeFirst(type);
+                for (char ch = 0; ch < ascii.length; ch++) {
+                    ascii[ch] |= chars == null || chars.contains(ch);
+                }
+            }
+            for (String text : first.texts) {
+                if (text.isEmpty()) {
+                    Arrays.fill(ascii, true);
+                } else if (text.charAt(0) < ascii.length) {
+                    ascii[text.charAt(0)] = true;
+                }
+            }
+            return new FirstSet(false, types, first.texts.toArray(new String[0]), ascii);
+        }
+
+        private First firstOf(IParser parser) {
+            if (parser instanceof PatternEntry) {
+                return firstOfSequence(((PatternEntry) parser).patternList);
+            } else if (parser instanceof OperatorEntry) {
+                return firstOfElement(((OperatorEntry) parser).operand);
+            } else if (parser instanceof ParserEntry) {
+                ParserEntry entry = (ParserEntry) parser;
+                entry.firsts = new FirstSet[entry.parserList.size()];
+                return firstOfAlternatives(entry.parserList, entry.firsts);
+            } else if (parser instanceof OrParser) {
+                OrParser entry = (OrParser) parser;
+                entry.firsts = new FirstSet[entry.parserList.size()];
+                return firstOfAlternatives(entry.parserList, entry.firsts);
+            }
+            First result = new First();
+            result.any = true;
+            return result;
+        }
+
+        private First firstOfAlternatives(List<IParser> parsers, FirstSet[] firsts) {
+            First result = new First();
+            for (int i = 0; i < parsers.size(); i++) {
+                First first = firstOf(parsers.get(i));
+                firsts[i] = toFirstSet(first);
+                result.addAll(first);
+                result.nullable |= first.nullable;
+            }
+            return result;
+        }
+
+        private First firstOfSequence(List<CharSequence> elements) {
+            First result = new First();
+            for (CharSequence element : elements) {
+                First first = firstOfElement(element);
+                result.addAll(first);
+                if (!first.nullable) {
+                    return result;
+                }
+            }
+            result.nullable = true;
+            return result;
+        }
+
+        private First firstOfElement(CharSequence element) {
+            First result = new First();
+            if (element == CUT) {
+                result.nullable = true;
+            } else if (element instanceof ITokenType) {
+                Integer id = ruleIdMap.get(((ITokenType) element).getTokenName());
+                if (id != null) {
+                    result.addAll(firstList.get(id));
+                } else {
+                    // テーブルの作成後に登録された字句解析の種別
+                    result.typeNames.add(((ITokenType) element).getTokenName());
+                }
+            } else if (element instanceof IParser) {
+                return firstOf((IParser) element);
+            } else {
+                result.texts.add(element.toString());
+            }
+            return result;
+        }
+
+        private void addLiterals(IParser parser) {
+            if (parser instanceof PatternEntry) {
+                for (CharSequence element : ((PatternEntry) parser).patternList) {
+                    if (element instanceof IParser) {
+                        addLiterals((IParser) element);
+                    } else if (element != CUT && !(element instanceof ITokenType)) {
+                        literals.add(element.toString());
+                    }
+                }
+            } else if (parser instanceof OperatorEntry) {
+                for (Operator op : ((OperatorEntry) parser).operatorList) {
+                    if (!(op.symbol instanceof ITokenType)) {
+                        literals.add(op.symbol.toString());
+                    }
+                }
+            } else if (parser instanceof ParserEntry) {
+                ((ParserEntry) parser).parserList.forEach(this::addLiterals);
+            } else if (parser instanceof OrParser) {
+                ((OrParser) parser).parserList.forEach(this::addLiterals);
+            }
+        }
+
+        private void addRule(String name, List<NodePattern> patterns) {
+            Integer id = ruleIdMap.get(name);
+            if (id == null) {
+                ruleIdMap.put(name, typeList.size());
+                typeList.add(ITokenType.CToken.from(name));
+                patternList.add(patterns);
+            } else {
+                patternList.set(id, patterns);
+            }
+        }
+    }
+
+    /**
+     * 変更されたら null
+     */
+    private ParserTable parserTable;
+
+    private ParserTable getParserTable() {
+        if (!isFrozen() && parserTable == null) {
+            parserTable = new ParserTable();
+        }
+        return parserTable;
+    }
+
     private class ParserStream {
         private class ParserContext extends TokenContext {
             private final TokenContext lexerContext;
 
-            private Map<String, TokenData> tokenDataMap = new HashMap<>();
+            /**
+             * 規則の番号ごとの結果
+             * 未処理は null、一致しない場合は NO_MATCH
+             */
+            private final Object[] memo = new Object[table.typeList.size()];
 
             private List<TokenData> cacheTokenList;
 
+            /**
+             * 位置の ASCII 文字
+             * 求めるまでは -2
+             */
+            private int ascii = -2;
+
+            /**
+             * この位置で処理中の規則の数
+             * 処理中はカットで破棄してもメモを残す
+             */
+            private int active = 0;
+
             private ParserContext(TokenContext context) {
                 lexerContext = context;
-                // トークンをキャッシュする
-                // TODO contextを変更する
-                context.getTokens().stream()
-                        .map(v -> {
-                            TokenData.TextToken token = (TokenData.TextToken) v;
-                            return new TokenData.TextToken(token.getType(), this, token.getEnd(), token.getText(), token.getValue());
-                        })
-                        .sorted(Comparator.comparingInt(v -> v.getText().length()))
-                        .forEach(v -> tokenDataMap.put(v.getType().getTokenName(), v));
+            }
+
+            /**
+             * 処理中のパターンのカットの位置とする
+             */
+            private void cut() {
+                if (cutContext == null || cutContext.getIndex().getIndex() < getIndex().getIndex()) {
+                    cutContext = this;
+                }
+            }
+
+            /**
+             * 字句解析のトークンのいずれかがあるか
+             * バッファの場合はトークンを作成せずに調べる
+             *
+             * @param types
+             * @param texts
+             * @return
+             */
+            private boolean hasLexerToken(ITokenType[] types, String[] texts) {
+                for (ITokenType type : types) {
+                    if (HkobaParser.this.hasLexerToken(lexerContext, type)) {
+                        return true;
+                    }
+                }
+                for (String text : texts) {
+                    if (HkobaParser.this.hasLexerToken(lexerContext, text)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            private int asciiAt() {
+                if (ascii == -2) {
+                    ascii = HkobaParser.this.asciiAt(lexerContext);
+                }
+                return ascii;
             }
 
             @Override
@@ -293,100 +950,170 @@ public class HkobaParser extends HkobaLexer {
                 return getContext(lexerContext.restore(index));
             }
 
+            @Override
+            public void release() {
+                contextMap.removeBelow(getIndex().getIndex(), c -> {
+                    if (c.active == 0) {
+                        c.evict();
+                    }
+                });
+                lexerContext.release();
+            }
+
+            /**
+             * メモを破棄する
+             * トークンから参照されていても、結果の分のメモリは解放される
+             * 処理中の規則の印(NO_MATCH)は残す
+             */
+            private void evict() {
+                for (int id = 0; id < memo.length; id++) {
+                    if (memo[id] != NO_MATCH) {
+                        memo[id] = null;
+                    }
+                }
+                cacheTokenList = null;
+            }
+
             @Override
             public List<TokenData> getTokens() {
                 if (cacheTokenList == null) {
-                    for (String type : nodePatternMap.keySet()) {
-                        getToken(ITokenType.CToken.from(type));
+                    for (TokenData token : lexerContext.getTokens()) {
+                        getToken(token.getType());
+                    }
+                    for (int id = 0; id < memo.length; id++) {
+                        if (table.patternList.get(id) != null) {
+                            getToken(id, table.typeList.get(id));
+                        }
+                    }
+                    cacheTokenList = new ArrayList<>();
+                    for (Object data : memo) {
+                        if (data != null && data != NO_MATCH) {
+                            cacheTokenList.add((TokenData) data);
+                        }
                     }
-                    cacheTokenList = tokenDataMap.values().stream().filter(v -> v != null).collect(Collectors.toList());
                 }
                 return cacheTokenList;
             }
 
             @Override
             public Optional<TokenData.TextToken> getToken(String text) {
-                return lexerContext.getToken(text).map(t -> new TokenData.TextToken(t.getType(), this, t.getEnd(), t.getText(), t.getValue()));
+                return Optional.ofNullable(lexerToken(lexerContext, text, this));
             }
 
             @Override
             public Optional<TokenData> getToken(ITokenType type) {
-                String name = type.getTokenName();
+                int id = table.ruleId(type);
+                if (id < 0) {
+                    // テーブルの作成後に登録された字句解析の種別
+                    return Optional.ofNullable(lexerToken(lexerContext, type, this));
+                }
+                return getToken(id, type);
+            }
+
+            /**
+             * 規則の番号で結果を求める
+             *
+             * @param id
+             * @param type
+             * @return
+             */
+            private Optional<TokenData> getToken(int id, ITokenType type) {
                 // パターンのチェック
-                if (tokenDataMap.containsKey(name)) {
-                    return Optional.ofNullable(tokenDataMap.get(name));
+                if (memo[id] != null) {
+                    return memo[id] == NO_MATCH ? Optional.empty() : Optional.of((TokenData) memo[id]);
                 }
-                if (!nodePatternMap.containsKey(name)) {
+                // 字句解析のトークンを優先する
+                // バッファの場合は、このコンテキストのトークンのみを配列から作成する
+                TokenData.TextToken token = lexerToken(lexerContext, type, this);
+                if (token != null) {
+                    memo[id] = token;
+                    return Optional.of(token);
+                }
+                if (table.patternList.get(id) == null) {
                     return Optional.empty();
                 }
-                // パターンをチェックする
                 // 無限ループ対策
-                tokenDataMap.put(name, null);
-                TokenData.NodeToken lastToken = null;
-                List<NodePattern> patterns = nodePatternMap.get(name);
-                // まずは自己参照以外をチェックする
-                for (NodePattern pat : patterns) {
-                    List<TokenData> result = null;
-                    Index endIndex = null;
-                    List<TokenData> ret = pat.matchToken(this, null);
-                    if (ret != null && ret.size() > 0) {
-                        // 入れ替えかも
-                        Index end = ret.get(ret.size() - 1).getEnd();
-                        if (result == null || end.getIndex() > endIndex.getIndex()) {
-                            // 入れ替え
-                            endIndex = end;
-                            result = ret;
-                        }
+                memo[id] = NO_MATCH;
+                active++;
+                try {
+                    // 自己参照以外で種を作る
+                    TokenData.NodeToken lastToken = longest(id, table.seedList.get(id), null, null);
+                    if (lastToken == null) {
+                        // 一致しなかった
+                        return Optional.empty();
                     }
-                    if (result != null) {
-                        // 登録する
-                        if (lastToken == null || endIndex.getIndex() > lastToken.getEnd().getIndex()) {
-                            // 入れ替える
-                            lastToken = new TokenData.NodeToken(pat.type, this, result, pat.resolver);
-                            tokenDataMap.put(name, lastToken);
+                    // 伸ばせなくなるまで左再帰のパターンを繰り返す
+                    List<NodePattern> grows = table.growList.get(id);
+                    while (!grows.isEmpty()) {
+                        TokenData.NodeToken grown = longest(id, grows, type, lastToken);
+                        if (grown == lastToken) {
+                            break;
                         }
+                        lastToken = grown;
                     }
+                    return Optional.of(lastToken);
+                } finally {
+                    active--;
                 }
-                if (lastToken == null) {
-                    // 一致しなかった
-                    tokenDataMap.put(name, null);
-                    return Optional.empty();
-                }
-                // 次に自己参照リストを処理する
-                boolean modFlag = true;
-                while (modFlag) {
-                    modFlag = false;
-                    for (NodePattern pat : patterns) {
-                        List<TokenData> result = null;
-                        Index endIndex = null;
-                        List<TokenData> ret = pat.matchToken(this, type);
-                        if (ret != null && ret.size() > 0) {
-                            // 入れ替えかも
-                            Index end = ret.get(ret.size() - 1).getEnd();
-                            if (result == null || end.getIndex() > endIndex.getIndex()) {
-                                // 入れ替え
-                                endIndex = end;
-                                result = ret;
-                            }
-                        }
-                        if (result != null) {
-                            if (endIndex.getIndex() > lastToken.getEnd().getIndex()) {
-                                // 入れ替える
-                                // TODO
-                                lastToken = new TokenData.NodeToken(pat.type, this, result, null);
-                                tokenDataMap.put(name, lastToken);
-                                modFlag = true;
-                            }
-                        }
+            }
+
+            /**
+             * 最も長く一致したパターンのトークン
+             * 伸びるたびにメモを更新する
+             *
+             * @param id
+             * @param patterns
+             * @param selfType 左再帰の場合は自己参照の種別
+             * @param last     これより長い場合のみ一致とする
+             * @return 伸びなかった場合は last
+             */
+            private TokenData.NodeToken longest(int id, List<NodePattern> patterns, ITokenType selfType, TokenData.NodeToken last) {
+                TokenData.NodeToken result = last;
+                // 呼び出し元のパターンのカット
+                ParserContext outerCut = cutContext;
+                ParserContext resultCut = null;
+                for (NodePattern pat : patterns) {
+                    if (selfType == null && !pat.first.test(this)) {
+                        // 先頭が一致しない
+                        continue;
+                    }
+                    cutContext = null;
+                    List<TokenData> ret = pat.matchToken(this, selfType);
+                    if (ret != null && ret.size() > 0
+                            && (result == null || ret.get(ret.size() - 1).getEnd().getIndex() > result.getEnd().getIndex())) {
+                        result = new TokenData.NodeToken(pat.type, this, ret, pat.resolver);
+                        memo[id] = result;
+                        resultCut = cutContext;
                     }
                 }
-                return Optional.of(lastToken);
+                cutContext = outerCut;
+                if (result != last && resultCut != null
+                        && resultCut.getIndex().getIndex() <= result.nextContext().getIndex().getIndex()) {
+                    // 選んだパターンのカットより前を破棄する
+                    // 選ばれなかったパターンや、途中で一致しなかった繰り返しのカットでは破棄しない
+                    resultCut.release();
+                }
+                return result;
             }
         }
 
-        private Map<Integer, ParserContext> contextMap = new HashMap<>();
+        private final IntMap<ParserContext> contextMap = new IntMap<>();
+
+        /**
+         * 処理中のパターンで最も後ろのカットの位置
+         * 規則の結果が決まるまで破棄を遅らせる
+         */
+        private ParserContext cutContext;
+
+        /**
+         * 最初のコンテキストを作成する時点のテーブル
+         */
+        private ParserTable table;
 
         private ParserContext getContext(TokenContext context) {
+            if (table == null) {
+                table = getParserTable();
+            }
             ParserContext result = contextMap.get(context.getIndex().getIndex());
             if (result == null) {
                 result = new ParserContext(context);
@@ -413,6 +1140,34 @@ public class HkobaParser extends HkobaLexer {
             return new PatternEntry(type);
         }
 
+        /**
+         * 演算子の優先順位で結合する
+         * operators(SECTION).left(1, "+", "-").left(2, "*", "/").right(3, "**") のように演算子を登録する
+         * 左再帰のパターンと異なり、後戻りや木の組み替えをしない
+         *
+         * @param operand 被演算子の種別
+         * @return
+         */
+        protected OperatorEntry operators(ITokenType operand) {
+            return new OperatorEntry(type, operand);
+        }
+
+        /**
+         * カット
+         * パターンのこの位置まで一致した場合、これより前の位置には後戻りしないものとしてメモを破棄する
+         * 破棄するのは、カットを含むパターンが規則の結果に選ばれた時点。選ばれなかったパターンのカットは無視する
+         * pattern(PROGRAM, STATEMENT, cut()); pattern(STATEMENT, cut()); のように左再帰で文を繋ぐと、
+         * 文ごとに結果が決まるので長い入力でもメモが増えない
+         * pattern(STATEMENT, cut()).count(0, Integer.MAX_VALUE) では、繰り返し全体の結果が決まるまで破棄しない
+         * 破棄した位置を再び解析した場合は結果を求め直すが、Reader の入力では読み直せない
+         * 破棄した位置の行と列は、それまでに求めていなければ 0 になる
+         *
+         * @return
+         */
+        protected CharSequence cut() {
+            return CUT;
+        }
+
         @Override
         protected void commit(List<AbstractParser> entryList) {
             if (entryList.size() > 1) {
@@ -444,29 +1199,51 @@ public class HkobaParser extends HkobaLexer {
     }
 
     protected IParser or(IParser parser, IParser... others) {
-        return (c, t) -> {
-            List<TokenData> result = parser.matchToken(c, t);
+        List<IParser> list = new ArrayList<>();
+        list.add(parser);
+        list.addAll(Arrays.asList(others));
+        return new OrParser(list);
+    }
+
+    /**
+     * 最も長く一致した候補を選ぶ
+     */
+    private class OrParser implements IParser {
+        private final List<IParser> parserList;
+
+        /**
+         * 候補ごとの先頭
+         * テーブルを作成するまでは null
+         */
+        private FirstSet[] firsts;
+
+        private OrParser(List<IParser> parserList) {
+            this.parserList = parserList;
+        }
+
+        @Override
+        public List<TokenData> matchToken(TokenContext c, ITokenType t) {
+            List<TokenData> result = null;
             TokenContext.Index lastEnd = c.getIndex();
-            if (result != null && result.size() > 0) {
-                lastEnd = result.get(result.size() - 1).getEnd();
-            }
-            if (others.length > 0) {
-                for (IParser ps : others) {
-                    List<TokenData> res = ps.matchToken(c, t);
-                    if (res != null) {
-                        TokenContext.Index end = c.getIndex();
-                        if (res.size() > 0) {
-                            end = res.get(res.size() - 1).getEnd();
-                        }
-                        if (end.getIndex() > lastEnd.getIndex()) {
-                            result = res;
-                            lastEnd = end;
-                        }
+            for (int i = 0; i < parserList.size(); i++) {
+                if (t == null && firsts != null && !firsts[i].test(c)) {
+                    // 先頭が一致しない
+                    continue;
+                }
+                List<TokenData> res = parserList.get(i).matchToken(c, t);
+                if (res != null) {
+                    TokenContext.Index end = c.getIndex();
+                    if (res.size() > 0) {
+                        end = res.get(res.size() - 1).getEnd();
+                    }
+                    if (i == 0 || end.getIndex() > lastEnd.getIndex()) {
+                        result = res;
+                        lastEnd = end;
                     }
                 }
             }
             return result;
-        };
+        }
     }
 
     public class NodePattern implements IParser {
@@ -474,6 +1251,12 @@ public class HkobaParser extends HkobaLexer {
         private final IParser parser;
         private Function<ParserArgs, Object> resolver;
 
+        /**
+         * 先頭になりうるもの
+         * テーブルを作成するまでは ANY
+         */
+        private FirstSet first = FirstSet.ANY;
+
         private NodePattern(ITokenType type, IParser parser) {
             this.type = type;
             this.parser = parser;
@@ -484,12 +1267,38 @@ public class HkobaParser extends HkobaLexer {
             return parser.matchToken(context, selfType);
         }
 
+        @Override
+        public boolean matchToken(TokenContext context, ITokenType selfType, List<TokenData> out) {
+            return parser.matchToken(context, selfType, out);
+        }
+
         public void value(Function<ParserArgs, Object> resolver) {
             this.resolver = resolver;
         }
+
+        /**
+         * 自己参照から始まるか
+         *
+         * @return 先頭がわからない場合は null
+         */
+        private Boolean isLeftRecursive() {
+            if (parser instanceof OperatorEntry) {
+                return false;
+            } else if (!(parser instanceof PatternEntry)) {
+                return null;
+            }
+            CharSequence first = ((PatternEntry) parser).patternList.get(0);
+            if (first instanceof ITokenType) {
+                return type.isSame((ITokenType) first);
+            } else if (first instanceof IParser) {
+                return null;
+            }
+            return false;
+        }
     }
 
     protected NodePattern register(ITokenType type, IParser parser) {
+        checkFrozen();
         List<NodePattern> list = nodePatternMap.get(type.getTokenName());
         if (list == null) {
             list = new ArrayList<>();
@@ -497,6 +1306,32 @@ public class HkobaParser extends HkobaLexer {
         }
         NodePattern result = new NodePattern(type, parser);
         list.add(result);
+        parserTable = null;
+        return result;
+    }
+
+    @Override
+    public HkobaParser freeze() {
+        super.freeze();
+        return this;
+    }
+
+    @Override
+    void prepare() {
+        super.prepare();
+        getParserTable();
+    }
+
+    @Override
+    Collection<String> getLiterals() {
+        ParserTable table = getParserTable();
+        return table != null ? table.literals : Collections.emptySet();
+    }
+
+    @Override
+    public TokenPattern register(ITokenType type, ILexer lexer, ILexer... others) {
+        TokenPattern result = super.register(type, lexer, others);
+        parserTable = null;
         return result;
     }
 
@@ -506,4 +1341,177 @@ public class HkobaParser extends HkobaLexer {
     public TokenContext getContext(String text) {
         return new ParserStream().getContext(getLexerContext(text));
     }
+
+    @Override
+    public TokenContext getContext(Reader reader) {
+        return new ParserStream().getContext(getLexerContext(reader));
+    }
+
+    @Override
+    public TokenContext getContext(FileChannel channel, Charset charset) throws IOException {
+        return new ParserStream().getContext(getLexerContext(channel, charset));
+    }
+
+    @Override
+    public TokenContext getContext(ByteBuffer buffer) {
+        return new ParserStream().getContext(getLexerContext(buffer));
+    }
+
+    @Override
+    public TokenContext getContext(TokenBuffer buffer) {
+        return new ParserStream().getContext(buffer.getContext());
+    }
+
+    @Override
+    public TokenContext getContext(Document document) {
+        return new ParserStream().getContext(document.getLexerContext());
+    }
+
+    /**
+     * 一括解析の結果
+     *
+     * @param <T> トークンから取り出した値
+     */
+    @Getter
+    @ToString
+    public static class ParseResult<T> {
+        /**
+         * 入力の順番
+         */
+        private final int index;
+
+        /**
+         * 入力全体に一致したか
+         * 後ろに空白とコメントのみが残る場合も一致とする
+         */
+        private final boolean matched;
+
+        /**
+         * 一致した終了位置
+         * 入力の途中までしか一致しない場合の確認に使う。一致しなかった場合は -1
+         */
+        private final int end;
+
+        /**
+         * 一致したトークンから取り出した値
+         */
+        private final T value;
+
+        /**
+         * 解析や値を求める処理で発生した例外
+         * 成功した場合は null
+         */
+        private final Throwable error;
+
+        private ParseResult(int index, boolean matched, int end, T value, Throwable error) {
+            this.index = index;
+            this.matched = matched;
+            this.end = end;
+            this.value = value;
+            this.error = error;
+        }
+
+        /**
+         * 例外が発生せずに入力全体に一致したか
+         *
+         * @return
+         */
+        public boolean isSuccess() {
+            return matched && error == null;
+        }
+    }
+
+    /**
+     * 一括解析でひとつのタスクにまとめる入力の数
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * 入力ごとに指定した種別を並列に解析し、トークンの値を求める
+     * 文法は事前に freeze() で確定しておくこと
+     *
+     * @param inputs
+     * @param type
+     * @param executor
+     * @return 入力の順の結果
+     */
+    public List<ParseResult<Object>> parseAll(Collection<String> inputs, ITokenType type, Executor executor) {
+        return parseAll(inputs, type, TokenData::getValue, executor);
+    }
+
+    /**
+     * 入力ごとに指定した種別を並列に解析する
+     * 文法は共有するので、事前に freeze() で確定しておくこと
+     * 入力の途中までしか一致しない場合は失敗とし、mapper は呼ばない
+     * mapper は解析したスレッドで呼ぶので、その例外も結果に含まれる
+     * 結果はトークンを持たないので、解析の途中の状態はすぐに解放される
+     *
+     * @param inputs
+     * @param type
+     * @param mapper   一致したトークンから値を取り出す処理
+     * @param executor
+     * @param <T>
+     * @return 入力の順の結果
+     * @throws IllegalStateException 文法を確定していない場合
+     */
+    public <T> List<ParseResult<T>> parseAll(Collection<String> inputs, ITokenType type, Function<TokenData, T> mapper, Executor executor) {
+        if (!isFrozen()) {
+            throw new IllegalStateException("Grammar is not frozen");
+        }
+        List<String> list = inputs instanceof List && inputs instanceof RandomAccess ? (List<String>) inputs : new ArrayList<>(inputs);
+        List<ParseResult<T>> results = new ArrayList<>(Collections.nCopies(list.size(), null));
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < list.size(); from += BATCH_SIZE) {
+            int start = from;
+            int end = Math.min(from + BATCH_SIZE, list.size());
+            tasks.add(CompletableFuture.runAsync(() -> {
+                for (int i = start; i < end; i++) {
+                    results.set(i, parseOne(i, list.get(i), type, mapper));
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        return results;
+    }
+
+    public List<ParseResult<Object>> parseAll(Stream<String> inputs, ITokenType type, Executor executor) {
+        return parseAll(inputs.collect(Collectors.toList()), type, executor);
+    }
+
+    public <T> List<ParseResult<T>> parseAll(Stream<String> inputs, ITokenType type, Function<TokenData, T> mapper, Executor executor) {
+        return parseAll(inputs.collect(Collectors.toList()), type, mapper, executor);
+    }
+
+    private <T> ParseResult<T> parseOne(int index, String input, ITokenType type, Function<TokenData, T> mapper) {
+        try {
+            Optional<TokenData> token = getContext(input).getToken(type);
+            if (!token.isPresent()) {
+                return new ParseResult<>(index, false, -1, null, null);
+            }
+            int end = token.get().getEnd().getIndex();
+            if (!token.get().nextContext().isEof()) {
+                // 途中までしか一致しない
+                return new ParseResult<>(index, false, end, null, null);
+            }
+            return new ParseResult<>(index, true, end, mapper.apply(token.get()), null);
+        } catch (RuntimeException | StackOverflowError e) {
+            return new ParseResult<>(index, false, -1, null, e);
+        }
+    }
+
+    /**
+     * 一括解析用の Executor
+     * 仮想スレッドが使える場合はタスクごとの仮想スレッド、使えない場合は ForkJoinPool を作成する
+     * 使用後は shutdown() すること
+     *
+     * @return
+     */
+    public static ExecutorService newBatchExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newWorkStealingPool();
+        }
+    }
 }
+
@@ -0,0 +1,17 @@
+package hkoba.parser2.parser;
+
+/**
+ * 複数のパターンの一致する長さをまとめて求める
+ */
+interface IPatternMatcher {
+    /**
+     * 先頭から一致させる
+     *
+     * @param text
+     * @param from
+     * @param limit
+     * @param result パターンの id ごとに一致した長さを設定する。一致しなければ変更しない
+     * @return 途中で一致をあきらめた場合は false。その場合の result は使用できない
+     */
+    boolean match(CharSequence text, int from, int limit, int[] result);
+}
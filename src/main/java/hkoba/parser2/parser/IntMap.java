@@ -0,0 +1,197 @@
+package hkoba.parser2.parser;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * int をキーとするハッシュ表
+ * キーをボクシングせず、オープンアドレス法で配列に直接格納する
+ * キーの小さい順のヒープも持ち、小さいキーから削除できる
+ *
+ * @param <V> null は格納できない
+ */
+final class IntMap<V> {
+    private int[] keys = new int[16];
+
+    /**
+     * null は空きとする
+     */
+    private Object[] values = new Object[16];
+
+    private int size = 0;
+
+    /**
+     * 格納したキーの二分ヒープ
+     * 先頭が最小のキー
+     */
+    private int[] heap = new int[16];
+
+    private int slot(int key, int length) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    /**
+     * 格納した値
+     * V のみを格納するので、キャストは常に成功する
+     *
+     * @param array
+     * @param ix
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private V valueAt(Object[] array, int ix) {
+        return (V) array[ix];
+    }
+
+    V get(int key) {
+        int mask = keys.length - 1;
+        for (int ix = slot(key, keys.length); values[ix] != null; ix = (ix + 1) & mask) {
+            if (keys[ix] == key) {
+                return valueAt(values, ix);
+            }
+        }
+        return null;
+    }
+
+    void put(int key, V value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        if (insert(key, value)) {
+            push(key);
+        }
+    }
+
+    /**
+     * ハッシュ表に格納する
+     *
+     * @param key
+     * @param value
+     * @return 新しいキーの場合は true
+     */
+    private boolean insert(int key, V value) {
+        int mask = keys.length - 1;
+        int ix = slot(key, keys.length);
+        while (values[ix] != null) {
+            if (keys[ix] == key) {
+                values[ix] = value;
+                return false;
+            }
+            ix = (ix + 1) & mask;
+        }
+        keys[ix] = key;
+        values[ix] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * ハッシュ表から削除する
+     * 後ろの要素を空きに詰めて、探索が途切れないようにする
+     *
+     * @param key
+     * @return
+     */
+    private V delete(int key) {
+        int mask = keys.length - 1;
+        int ix = slot(key, keys.length);
+        while (keys[ix] != key) {
+            ix = (ix + 1) & mask;
+        }
+        V result = valueAt(values, ix);
+        int hole = ix;
+        for (int next = (ix + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = slot(keys[next], keys.length);
+            // home が (hole, next] の外なら hole に移せる
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        values[hole] = null;
+        size--;
+        return result;
+    }
+
+    private void push(int key) {
+        if (size > heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        int ix = size - 1;
+        // 位置の昇順に追加されることが多いので、ほとんど上に移動しない
+        while (ix > 0 && heap[(ix - 1) / 2] > key) {
+            heap[ix] = heap[(ix - 1) / 2];
+            ix = (ix - 1) / 2;
+        }
+        heap[ix] = key;
+    }
+
+    /**
+     * 最小のキーを取り出す
+     * ハッシュ表から削除した後に呼び出す
+     *
+     * @return
+     */
+    private int pop() {
+        int result = heap[0];
+        int key = heap[size];
+        int ix = 0;
+        while (ix * 2 + 1 < size) {
+            int child = ix * 2 + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= key) {
+                break;
+            }
+            heap[ix] = heap[child];
+            ix = child;
+        }
+        heap[ix] = key;
+        return result;
+    }
+
+    /**
+     * 指定した値より小さいキーを削除する
+     *
+     * @param key
+     */
+    void removeBelow(int key) {
+        removeBelow(key, value -> {
+        });
+    }
+
+    /**
+     * 指定した値より小さいキーを削除する
+     * 削除するキーの数に比例する時間で処理し、要素が減った場合は配列を縮める
+     *
+     * @param key
+     * @param removed 削除した値を受け取る
+     */
+    void removeBelow(int key, Consumer<? super V> removed) {
+        while (size > 0 && heap[0] < key) {
+            V value = delete(heap[0]);
+            pop();
+            removed.accept(value);
+        }
+        if (keys.length > 16 && size * 8 < keys.length) {
+            resize(Math.max(16, Integer.highestOneBit(size * 4 + 1) * 2));
+            heap = Arrays.copyOf(heap, Math.max(16, size * 2));
+        }
+    }
+
+    private void resize(int length) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[length];
+        values = new Object[length];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                insert(oldKeys[i], valueAt(oldValues, i));
+            }
+        }
+    }
+}
@@ -0,0 +1,1007 @@
+package hkoba.parser2.parser;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 文字列と正規表現をひとつにまとめた決定性オートマトン
+ * 状態は必要になった時点で作成する
+ * 状態の追加は同期し、作成済みの遷移は同期せずに参照する
+ */
+final class LexerAutomaton implements IPatternMatcher {
+    /**
+     * 遷移先がない
+     */
+    static final int DEAD = -1;
+
+    /**
+     * 遷移先が未計算
+     */
+    private static final int UNKNOWN = -2;
+
+    /**
+     * 状態数が上限に達したため遷移先を作成しない
+     */
+    static final int LIMIT = -3;
+
+    /**
+     * 展開する繰り返し回数の上限
+     */
+    private static final int MAX_REPEAT = 256;
+
+    /**
+     * 作成する状態数の上限
+     * 超える場合はオートマトンを使わずにパターンごとに一致させる
+     */
+    static final int MAX_STATES = 10000;
+
+    /**
+     * 文字の集合
+     * 昇順の [from, to] の組で保持する
+     */
+    static final class CharSet {
+        static final CharSet EMPTY = new CharSet(new char[0]);
+        static final CharSet ALL = new CharSet(new char[]{Character.MIN_VALUE, Character.MAX_VALUE});
+
+        private final char[] ranges;
+
+        private CharSet(char[] ranges) {
+            this.ranges = ranges;
+        }
+
+        static CharSet of(char ch) {
+            return new CharSet(new char[]{ch, ch});
+        }
+
+        static CharSet range(char from, char to) {
+            return new CharSet(new char[]{from, to});
+        }
+
+        boolean contains(char ch) {
+            int lo = 0;
+            int hi = ranges.length / 2 - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ch < ranges[mid * 2]) {
+                    hi = mid - 1;
+                } else if (ch > ranges[mid * 2 + 1]) {
+                    lo = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            return ranges.length == 0;
+        }
+
+        /**
+         * 範囲の数
+         *
+         * @return
+         */
+        int size() {
+            return ranges.length / 2;
+        }
+
+        char from(int ix) {
+            return ranges[ix * 2];
+        }
+
+        char to(int ix) {
+            return ranges[ix * 2 + 1];
+        }
+
+        boolean intersects(CharSet other) {
+            for (int i = 0; i < size(); i++) {
+                for (int j = 0; j < other.size(); j++) {
+                    if (from(i) <= other.to(j) && other.from(j) <= to(i)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        CharSet union(CharSet other) {
+            if (other.isEmpty()) {
+                return this;
+            } else if (isEmpty()) {
+                return other;
+            }
+            int[][] list = new int[size() + other.size()][];
+            for (int i = 0; i < size(); i++) {
+                list[i] = new int[]{from(i), to(i)};
+            }
+            for (int i = 0; i < other.size(); i++) {
+                list[size() + i] = new int[]{other.from(i), other.to(i)};
+            }
+            Arrays.sort(list, Comparator.comparingInt(v -> v[0]));
+            StringBuilder buf = new StringBuilder();
+            int start = list[0][0];
+            int end = list[0][1];
+            for (int i = 1; i < list.length; i++) {
+                if (list[i][0] <= end + 1) {
+                    end = Math.max(end, list[i][1]);
+                } else {
+                    buf.append((char) start).append((char) end);
+                    start = list[i][0];
+                    end = list[i][1];
+                }
+            }
+            buf.append((char) start).append((char) end);
+            return new CharSet(buf.toString().toCharArray());
+        }
+
+        CharSet negate() {
+            StringBuilder buf = new StringBuilder();
+            int start = Character.MIN_VALUE;
+            for (int i = 0; i < size(); i++) {
+                if (from(i) > start) {
+                    buf.append((char) start).append((char) (from(i) - 1));
+                }
+                start = to(i) + 1;
+            }
+            if (start <= Character.MAX_VALUE) {
+                buf.append((char) start).append(Character.MAX_VALUE);
+            }
+            return new CharSet(buf.toString().toCharArray());
+        }
+    }
+
+    /**
+     * 正規表現の構文木
+     */
+    abstract static class Expr {
+    }
+
+    static final class CharExpr extends Expr {
+        final CharSet set;
+
+        private CharExpr(CharSet set) {
+            this.set = set;
+        }
+    }
+
+    static final class SeqExpr extends Expr {
+        final List<Expr> list;
+
+        private SeqExpr(List<Expr> list) {
+            this.list = list;
+        }
+    }
+
+    static final class AltExpr extends Expr {
+        final List<Expr> list;
+
+        /**
+         * サロゲートペアをひとつの文字として一致させるための候補か
+         */
+        final boolean codePoint;
+
+        private AltExpr(List<Expr> list) {
+            this(list, false);
+        }
+
+        private AltExpr(List<Expr> list, boolean codePoint) {
+            this.list = list;
+            this.codePoint = codePoint;
+        }
+    }
+
+    static final class RepeatExpr extends Expr {
+        final Expr expr;
+        final int min;
+        /**
+         * 負数は上限なし
+         */
+        final int max;
+
+        private RepeatExpr(Expr expr, int min, int max) {
+            this.expr = expr;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * 文字列と一致する式
+     *
+     * @param text
+     * @return
+     */
+    static Expr literal(String text) {
+        List<Expr> list = new ArrayList<>();
+        for (int i = 0; i < text.length(); i++) {
+            list.add(new CharExpr(CharSet.of(text.charAt(i))));
+        }
+        return list.size() == 1 ? list.get(0) : new SeqExpr(list);
+    }
+
+    /**
+     * いずれかに一致する式
+     *
+     * @param list
+     * @return
+     */
+    static Expr alt(List<Expr> list) {
+        return list.size() == 1 ? list.get(0) : new AltExpr(new ArrayList<>(list));
+    }
+
+    /**
+     * 空文字列に一致するかどうか
+     *
+     * @param expr
+     * @return
+     */
+    static boolean nullable(Expr expr) {
+        if (expr instanceof CharExpr) {
+            return false;
+        } else if (expr instanceof SeqExpr) {
+            for (Expr ex : ((SeqExpr) expr).list) {
+                if (!nullable(ex)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (expr instanceof AltExpr) {
+            for (Expr ex : ((AltExpr) expr).list) {
+                if (nullable(ex)) {
+                    return true;
+                }
+            }
+            return false;
+        } else {
+            RepeatExpr rep = (RepeatExpr) expr;
+            return rep.min == 0 || nullable(rep.expr);
+        }
+    }
+
+    /**
+     * 先頭になりうる文字の集合
+     *
+     * @param expr
+     * @return
+     */
+    static CharSet first(Expr expr) {
+        if (expr instanceof CharExpr) {
+            return ((CharExpr) expr).set;
+        } else if (expr instanceof SeqExpr) {
+            CharSet result = CharSet.EMPTY;
+            for (Expr ex : ((SeqExpr) expr).list) {
+                result = result.union(first(ex));
+                if (!nullable(ex)) {
+                    break;
+                }
+            }
+            return result;
+        } else if (expr instanceof AltExpr) {
+            CharSet result = CharSet.EMPTY;
+            for (Expr ex : ((AltExpr) expr).list) {
+                result = result.union(first(ex));
+            }
+            return result;
+        } else {
+            return first(((RepeatExpr) expr).expr);
+        }
+    }
+
+    /**
+     * 正規表現を構文木にする
+     * オートマトンにできない構文(先読み、後方参照、アンカーなど)を含む場合は null
+     * オートマトンは最長一致、Matcher#lookingAt() は先に試した候補での一致になるので、
+     * 選択や省略できる部分で一致する長さが変わりうる場合も null
+     *
+     * @param regex
+     * @return
+     */
+    static Expr parse(String regex) {
+        try {
+            RegexParser parser = new RegexParser(regex);
+            Expr expr = parser.parseAlt();
+            if (parser.pos < regex.length() || !deterministic(expr, CharSet.EMPTY)) {
+                return null;
+            }
+            return expr;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 次の文字だけで候補を選べるか
+     * 選べる場合は、先に試した候補で一致する長さと最長一致の長さが同じになる
+     * <ul>
+     * <li>選択は先頭の文字が重ならず、空文字列に一致する候補は最後のみ</li>
+     * <li>回数が決まらない繰り返しは空文字列に一致せず、先頭の文字が後に続く文字と重ならない</li>
+     * </ul>
+     *
+     * @param expr
+     * @param follow 式の後に続きうる文字
+     * @return
+     */
+    private static boolean deterministic(Expr expr, CharSet follow) {
+        if (expr instanceof CharExpr) {
+            return true;
+        } else if (expr instanceof SeqExpr) {
+            List<Expr> list = ((SeqExpr) expr).list;
+            CharSet next = follow;
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (!deterministic(list.get(i), next)) {
+                    return false;
+                }
+                next = nullable(list.get(i)) ? first(list.get(i)).union(next) : first(list.get(i));
+            }
+            return true;
+        } else if (expr instanceof AltExpr) {
+            AltExpr alt = (AltExpr) expr;
+            if (alt.codePoint) {
+                // サロゲートペアは分けずに一致させる
+                return !follow.intersects(RegexParser.LOW);
+            }
+            CharSet seen = CharSet.EMPTY;
+            for (int i = 0; i < alt.list.size(); i++) {
+                Expr ex = alt.list.get(i);
+                CharSet first = first(ex);
+                if (seen.intersects(first) || !deterministic(ex, follow)) {
+                    return false;
+                }
+                if (nullable(ex) && (i < alt.list.size() - 1 || seen.intersects(follow))) {
+                    // 空文字列で一致する候補を先に試すと短くなる
+                    return false;
+                }
+                seen = seen.union(first);
+            }
+            return true;
+        } else {
+            RepeatExpr rep = (RepeatExpr) expr;
+            CharSet first = first(rep.expr);
+            if (rep.min != rep.max && (nullable(rep.expr) || first.intersects(follow))) {
+                return false;
+            }
+            if (rep.max < 0 && rep.min <= 1 && singleLow(rep.expr)) {
+                // 上限のない繰り返しでは、サロゲートペアを分けて次の回で下位を一致させてもペアで一致させた場合と同じ位置と状態になる
+                first = first.negate().union(RegexParser.LOW).negate();
+            }
+            return deterministic(rep.expr, rep.max == 1 ? follow : first.union(follow));
+        }
+    }
+
+    /**
+     * 下位サロゲートで始まる候補がすべて1文字で一致するか
+     *
+     * @param expr
+     * @return
+     */
+    private static boolean singleLow(Expr expr) {
+        if (expr instanceof CharExpr || expr instanceof AltExpr && ((AltExpr) expr).codePoint) {
+            return true;
+        } else if (expr instanceof AltExpr) {
+            for (Expr ex : ((AltExpr) expr).list) {
+                if (first(ex).intersects(RegexParser.LOW) && !singleLow(ex)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return !first(expr).intersects(RegexParser.LOW);
+    }
+
+    private static class RegexParser {
+        private static final CharSet DIGIT = CharSet.range('0', '9');
+        private static final CharSet WORD = DIGIT.union(CharSet.range('a', 'z')).union(CharSet.range('A', 'Z')).union(CharSet.of('_'));
+        private static final CharSet SPACE = CharSet.range('\t', '\r').union(CharSet.of(' '));
+        private static final CharSet DOT = CharSet.of('\n').union(CharSet.of('\r')).union(CharSet.of('\u0085'))
+                .union(CharSet.range('\u2028', '\u2029')).negate();
+        private static final CharSet HIGH = CharSet.range(Character.MIN_HIGH_SURROGATE, Character.MAX_HIGH_SURROGATE);
+        static final CharSet LOW = CharSet.range(Character.MIN_LOW_SURROGATE, Character.MAX_LOW_SURROGATE);
+
+        private final String src;
+        private int pos;
+
+        private RegexParser(String src) {
+            this.src = src;
+            for (int i = 0; i < src.length(); i++) {
+                if (Character.isSurrogate(src.charAt(i))) {
+                    // コードポイント単位の一致になるので対象外
+                    throw new UnsupportedOperationException();
+                }
+            }
+        }
+
+        private boolean hasNext() {
+            return pos < src.length();
+        }
+
+        private char peek() {
+            return src.charAt(pos);
+        }
+
+        private char next() {
+            if (!hasNext()) {
+                throw new UnsupportedOperationException();
+            }
+            return src.charAt(pos++);
+        }
+
+        private Expr parseAlt() {
+            List<Expr> list = new ArrayList<>();
+            list.add(parseSeq());
+            while (hasNext() && peek() == '|') {
+                pos++;
+                list.add(parseSeq());
+            }
+            return alt(list);
+        }
+
+        private Expr parseSeq() {
+            List<Expr> list = new ArrayList<>();
+            while (hasNext() && peek() != '|' && peek() != ')') {
+                list.add(parseRepeat());
+            }
+            return list.size() == 1 ? list.get(0) : new SeqExpr(list);
+        }
+
+        private Expr parseRepeat() {
+            Expr expr = parseAtom();
+            while (hasNext()) {
+                char ch = peek();
+                int min;
+                int max;
+                if (ch == '*') {
+                    pos++;
+                    min = 0;
+                    max = -1;
+                } else if (ch == '+') {
+                    pos++;
+                    min = 1;
+                    max = -1;
+                } else if (ch == '?') {
+                    pos++;
+                    min = 0;
+                    max = 1;
+                } else if (ch == '{') {
+                    pos++;
+                    min = parseNumber();
+                    if (peek() == ',') {
+                        pos++;
+                        max = peek() == '}' ? -1 : parseNumber();
+                    } else {
+                        max = min;
+                    }
+                    if (next() != '}' || Math.max(min, max) > MAX_REPEAT) {
+                        throw new UnsupportedOperationException();
+                    }
+                } else {
+                    break;
+                }
+                if (hasNext() && (peek() == '?' || peek() == '+')) {
+                    // 最短一致と強欲な量指定子は対象外
+                    throw new UnsupportedOperationException();
+                }
+                expr = new RepeatExpr(expr, min, max);
+            }
+            return expr;
+        }
+
+        private int parseNumber() {
+            int start = pos;
+            while (hasNext() && Character.isDigit(peek())) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new UnsupportedOperationException();
+            }
+            return Integer.parseInt(src.substring(start, pos));
+        }
+
+        private Expr parseAtom() {
+            char ch = next();
+            switch (ch) {
+                case '(':
+                    if (hasNext() && peek() == '?') {
+                        if (!src.startsWith("?:", pos)) {
+                            // 先読み、名前付きグループ、フラグ
+                            throw new UnsupportedOperationException();
+                        }
+                        pos += 2;
+                    }
+                    Expr expr = parseAlt();
+                    if (next() != ')') {
+                        throw new UnsupportedOperationException();
+                    }
+                    return expr;
+                case '[':
+                    return charExpr(parseClass());
+                case '.':
+                    return charExpr(DOT);
+                case '\\':
+                    return charExpr(parseEscape());
+                case ')':
+                case '^':
+                case '$':
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedOperationException();
+                default:
+                    return new CharExpr(CharSet.of(ch));
+            }
+        }
+
+        /**
+         * サロゲートペアを含む集合はコードポイント単位で一致させる
+         *
+         * @param set
+         * @return
+         */
+        private Expr charExpr(CharSet set) {
+            if (!set.intersects(HIGH)) {
+                return new CharExpr(set);
+            }
+            return new AltExpr(Arrays.asList(new CharExpr(set), new SeqExpr(Arrays.asList(new CharExpr(HIGH), new CharExpr(LOW)))), true);
+        }
+
+        private CharSet parseClass() {
+            boolean negate = false;
+            if (hasNext() && peek() == '^') {
+                pos++;
+                negate = true;
+            }
+            if (hasNext() && peek() == ']') {
+                throw new UnsupportedOperationException();
+            }
+            CharSet result = CharSet.EMPTY;
+            while (true) {
+                char ch = next();
+                if (ch == ']') {
+                    break;
+                } else if (ch == '[' || (ch == '&' && hasNext() && peek() == '&')) {
+                    // 入れ子と積集合は対象外
+                    throw new UnsupportedOperationException();
+                }
+                CharSet set = ch == '\\' ? parseEscape() : CharSet.of(ch);
+                if (hasNext() && peek() == '-' && pos + 1 < src.length() && src.charAt(pos + 1) != ']') {
+                    pos++;
+                    char end = next();
+                    CharSet endSet = end == '\\' ? parseEscape() : CharSet.of(end);
+                    if (end == '[' || set.size() != 1 || endSet.size() != 1 || set.from(0) != set.to(0) || endSet.from(0) != endSet.to(0)) {
+                        throw new UnsupportedOperationException();
+                    }
+                    set = CharSet.range(set.from(0), endSet.from(0));
+                }
+                result = result.union(set);
+            }
+            return negate ? result.negate() : result;
+        }
+
+        private CharSet parseEscape() {
+            char ch = next();
+            switch (ch) {
+                case 'd':
+                    return DIGIT;
+                case 'D':
+                    return DIGIT.negate();
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return WORD.negate();
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return SPACE.negate();
+                case 't':
+                    return CharSet.of('\t');
+                case 'n':
+                    return CharSet.of('\n');
+                case 'r':
+                    return CharSet.of('\r');
+                case 'f':
+                    return CharSet.of('\f');
+                case 'a':
+                    return CharSet.of('\u0007');
+                case 'e':
+                    return CharSet.of('\u001B');
+                case 'x':
+                    return CharSet.of(parseHex(2));
+                case 'u':
+                    return CharSet.of(parseHex(4));
+                default:
+                    if (Character.isLetterOrDigit(ch)) {
+                        // アンカー、後方参照、プロパティなど
+                        throw new UnsupportedOperationException();
+                    }
+                    return CharSet.of(ch);
+            }
+        }
+
+        private char parseHex(int size) {
+            if (pos + size > src.length()) {
+                throw new UnsupportedOperationException();
+            }
+            try {
+                char ch = (char) Integer.parseInt(src.substring(pos, pos + size), 16);
+                if (Character.isSurrogate(ch)) {
+                    throw new UnsupportedOperationException();
+                }
+                pos += size;
+                return ch;
+            } catch (NumberFormatException e) {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    /**
+     * NFAの状態
+     */
+    private static class NfaState {
+        private int index;
+        private CharSet set;
+        private int next = -1;
+        private List<Integer> epsilon = new ArrayList<>();
+        private int accept = -1;
+    }
+
+    /**
+     * 式を登録してオートマトンを作成する
+     */
+    static final class Builder {
+        private final List<NfaState> nfaList = new ArrayList<>();
+        private final NfaState start = newState(null);
+
+        private NfaState newState(CharSet set) {
+            NfaState state = new NfaState();
+            state.index = nfaList.size();
+            state.set = set;
+            nfaList.add(state);
+            return state;
+        }
+
+        private int indexOf(NfaState state) {
+            return state.index;
+        }
+
+        /**
+         * 一致した時に id を返す式を登録する
+         *
+         * @param id
+         * @param expr
+         * @return
+         */
+        Builder add(int id, Expr expr) {
+            NfaState end = newState(null);
+            end.accept = id;
+            start.epsilon.add(compile(expr, end));
+            return this;
+        }
+
+        /**
+         * 式を end へつなげる
+         *
+         * @param expr
+         * @param end
+         * @return 開始状態
+         */
+        private int compile(Expr expr, NfaState end) {
+            int endIndex = indexOf(end);
+            if (expr instanceof CharExpr) {
+                NfaState state = newState(((CharExpr) expr).set);
+                state.next = endIndex;
+                return indexOf(state);
+            } else if (expr instanceof SeqExpr) {
+                List<Expr> list = ((SeqExpr) expr).list;
+                int next = endIndex;
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    NfaState state = newState(null);
+                    state.epsilon.add(next);
+                    next = compile(list.get(i), state);
+                }
+                return next;
+            } else if (expr instanceof AltExpr) {
+                NfaState state = newState(null);
+                for (Expr ex : ((AltExpr) expr).list) {
+                    state.epsilon.add(compile(ex, end));
+                }
+                return indexOf(state);
+            } else {
+                RepeatExpr rep = (RepeatExpr) expr;
+                int next = endIndex;
+                if (rep.max < 0) {
+                    // 上限なし
+                    NfaState loop = newState(null);
+                    loop.epsilon.add(next);
+                    NfaState back = newState(null);
+                    back.epsilon.add(indexOf(loop));
+                    loop.epsilon.add(compile(rep.expr, back));
+                    next = indexOf(loop);
+                } else {
+                    for (int i = rep.min; i < rep.max; i++) {
+                        NfaState opt = newState(null);
+                        opt.epsilon.add(endIndex);
+                        NfaState state = newState(null);
+                        state.epsilon.add(next);
+                        opt.epsilon.add(compile(rep.expr, state));
+                        next = indexOf(opt);
+                    }
+                }
+                for (int i = 0; i < rep.min; i++) {
+                    NfaState state = newState(null);
+                    state.epsilon.add(next);
+                    next = compile(rep.expr, state);
+                }
+                return next;
+            }
+        }
+
+        LexerAutomaton build() {
+            return new LexerAutomaton(nfaList);
+        }
+    }
+
+    private final NfaState[] nfaStates;
+
+    /**
+     * DFAの状態
+     */
+    private static final class DfaState {
+        private final int[] nfa;
+
+        /**
+         * 一致している id の一覧
+         */
+        private final int[] accepts;
+
+        /**
+         * ASCII の遷移先
+         * 未計算は UNKNOWN
+         */
+        private final int[] ascii = new int[128];
+
+        /**
+         * ASCII 以外の遷移先
+         */
+        private final Map<Character, Integer> other = new ConcurrentHashMap<>();
+
+        private DfaState(int[] nfa, int[] accepts) {
+            this.nfa = nfa;
+            this.accepts = accepts;
+            Arrays.fill(ascii, UNKNOWN);
+        }
+    }
+
+    /**
+     * DFAの状態
+     * key: NFA状態の集合
+     * 状態の追加は同期して行う
+     */
+    private final Map<List<Integer>, Integer> stateMap = new HashMap<>();
+
+    private volatile DfaState[] states = new DfaState[16];
+
+    private int stateCount = 0;
+
+    private LexerAutomaton(List<NfaState> nfaList) {
+        nfaStates = nfaList.toArray(new NfaState[0]);
+        addState(closure(Collections.singletonList(0)));
+    }
+
+    private int[] closure(Collection<Integer> states) {
+        BitSet set = new BitSet(nfaStates.length);
+        Deque<Integer> stack = new ArrayDeque<>(states);
+        while (!stack.isEmpty()) {
+            int st = stack.pop();
+            if (!set.get(st)) {
+                set.set(st);
+                nfaStates[st].epsilon.forEach(stack::push);
+            }
+        }
+        return set.stream().toArray();
+    }
+
+    private static List<Integer> key(int[] nfa) {
+        List<Integer> key = new ArrayList<>(nfa.length);
+        for (int st : nfa) {
+            key.add(st);
+        }
+        return key;
+    }
+
+    private int addState(int[] nfa) {
+        List<Integer> key = key(nfa);
+        BitSet accept = new BitSet();
+        for (int st : nfa) {
+            if (nfaStates[st].accept >= 0) {
+                accept.set(nfaStates[st].accept);
+            }
+        }
+        Integer result = stateMap.get(key);
+        if (result == null) {
+            result = stateCount++;
+            stateMap.put(key, result);
+            DfaState[] list = states;
+            if (result == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[result] = new DfaState(nfa, accept.stream().toArray());
+            states = list;
+        }
+        return result;
+    }
+
+    /**
+     * 状態を取得する
+     * 他のスレッドで追加された状態がまだ見えない場合は同期して取得する
+     *
+     * @param index
+     * @return
+     */
+    private DfaState state(int index) {
+        DfaState[] list = states;
+        if (index < list.length && list[index] != null) {
+            return list[index];
+        }
+        synchronized (this) {
+            return states[index];
+        }
+    }
+
+    private synchronized int computeNext(DfaState state, char ch) {
+        List<Integer> next = new ArrayList<>();
+        for (int st : state.nfa) {
+            NfaState nfa = nfaStates[st];
+            if (nfa.set != null && nfa.set.contains(ch)) {
+                next.add(nfa.next);
+            }
+        }
+        if (next.isEmpty()) {
+            return DEAD;
+        }
+        int[] nfa = closure(next);
+        if (stateCount >= MAX_STATES && !stateMap.containsKey(key(nfa))) {
+            return LIMIT;
+        }
+        return addState(nfa);
+    }
+
+    /**
+     * 次の状態
+     * 複数のスレッドから呼び出せる
+     *
+     * @param state
+     * @param ch
+     * @return 遷移できなければ DEAD、状態数が上限に達した場合は LIMIT
+     */
+    int step(int state, char ch) {
+        DfaState st = state(state);
+        if (ch < 128) {
+            int next = st.ascii[ch];
+            if (next == UNKNOWN) {
+                next = computeNext(st, ch);
+                st.ascii[ch] = next;
+            }
+            return next;
+        }
+        Integer next = st.other.get(ch);
+        if (next == null) {
+            next = computeNext(st, ch);
+            st.other.put(ch, next);
+        }
+        return next;
+    }
+
+    /**
+     * 状態で一致している id の一覧
+     *
+     * @param state
+     * @return
+     */
+    int[] accepts(int state) {
+        return state(state).accepts;
+    }
+
+    /**
+     * 登録した式を識別する値
+     * 同じ式を同じ順に登録したオートマトンは同じ値になる
+     *
+     * @return
+     */
+    String fingerprint() {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (NfaState st : nfaStates) {
+            List<Integer> values = new ArrayList<>();
+            values.add(st.next);
+            values.add(st.accept);
+            values.add(st.epsilon.size());
+            values.addAll(st.epsilon);
+            if (st.set != null) {
+                values.add(st.set.size());
+                for (int i = 0; i < st.set.size(); i++) {
+                    values.add((int) st.set.from(i));
+                    values.add((int) st.set.to(i));
+                }
+            } else {
+                values.add(-1);
+            }
+            for (int v : values) {
+                hash = (hash ^ v) * 0x100000001b3L;
+            }
+        }
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * 全ての状態を作成して遷移表にする
+     * 文字は遷移先が同じになる範囲ごとにまとめる
+     *
+     * @return
+     */
+    synchronized DfaTable expand() {
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        for (NfaState st : nfaStates) {
+            if (st.set != null) {
+                for (int i = 0; i < st.set.size(); i++) {
+                    bounds.add((int) st.set.from(i));
+                    if (st.set.to(i) < Character.MAX_VALUE) {
+                        bounds.add(st.set.to(i) + 1);
+                    }
+                }
+            }
+        }
+        char[] classStarts = new char[bounds.size()];
+        int ix = 0;
+        for (int bound : bounds) {
+            classStarts[ix++] = (char) bound;
+        }
+        List<Integer> next = new ArrayList<>();
+        for (int state = 0; state < stateCount; state++) {
+            // step で新しい状態が追加される
+            for (char ch : classStarts) {
+                int st = step(state, ch);
+                if (st == LIMIT) {
+                    throw new IllegalStateException("Too many states: " + MAX_STATES);
+                }
+                next.add(st);
+            }
+        }
+        int[][] accepts = new int[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            accepts[state] = accepts(state);
+        }
+        return new DfaTable(classStarts, next.stream().mapToInt(Integer::intValue).toArray(), accepts);
+    }
+
+    /**
+     * 先頭から最長一致させる
+     *
+     * @param text
+     * @param from   開始位置
+     * @param limit  終了位置
+     * @param result id ごとの一致した文字数を設定する
+     * @return 状態数が上限に達した場合は false
+     */
+    @Override
+    public boolean match(CharSequence text, int from, int limit, int[] result) {
+        int state = 0;
+        for (int id : accepts(state)) {
+            result[id] = 0;
+        }
+        for (int i = from; i < limit; i++) {
+            state = step(state, text.charAt(i));
+            if (state == DEAD) {
+                break;
+            } else if (state == LIMIT) {
+                return false;
+            }
+            for (int id : accepts(state)) {
+                result[id] = i + 1 - from;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,144 @@
+package hkoba.parser2.parser;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文法のクラスから字句解析の遷移表を展開したクラスのソースを生成する
+ * 生成するクラスは文法のクラスを継承し、そのまま置き換えて使用できる
+ * 展開するのは字句解析の遷移表だけで、構文の規則は文法のクラスの処理をそのまま使う
+ * 遷移表にするのは Matcher#lookingAt() と同じ長さで一致する正規表現だけなので、字句解析の結果は文法のクラスと同じになる
+ * <p>
+ * 引数: 文法のクラス名... 出力先のディレクトリ
+ */
+public final class LexerGenerator {
+    private LexerGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: LexerGenerator <grammar class>... <output directory>");
+        }
+        Path dir = Paths.get(args[args.length - 1]);
+        for (int i = 0; i < args.length - 1; i++) {
+            Class<? extends HkobaLexer> grammar = Class.forName(args[i]).asSubclass(HkobaLexer.class);
+            generate(grammar, dir);
+        }
+    }
+
+    /**
+     * 生成するクラスの名前
+     *
+     * @param grammar
+     * @return
+     */
+    public static String generatedName(Class<? extends HkobaLexer> grammar) {
+        return grammar.getName() + "Generated";
+    }
+
+    /**
+     * ソースを生成して出力先のディレクトリに書き込む
+     *
+     * @param grammar 引数のないコンストラクタを持つ文法のクラス
+     * @param dir
+     * @return 書き込んだファイル
+     * @throws IOException
+     */
+    public static Path generate(Class<? extends HkobaLexer> grammar, Path dir) throws IOException {
+        String name = generatedName(grammar);
+        Path file = dir.resolve(name.replace('.', '/') + ".java");
+        Files.createDirectories(file.getParent());
+        Files.write(file, generate(grammar).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * ソースを生成する
+     *
+     * @param grammar 引数のないコンストラクタを持つ文法のクラス
+     * @return
+     */
+    public static String generate(Class<? extends HkobaLexer> grammar) {
+        if (Modifier.isFinal(grammar.getModifiers()) || grammar.getEnclosingClass() != null) {
+            throw new IllegalArgumentException("Not extendable: " + grammar.getName());
+        }
+        HkobaLexer lexer;
+        try {
+            lexer = grammar.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("No public constructor: " + grammar.getName(), e);
+        }
+        String name = generatedName(grammar);
+        int dot = name.lastIndexOf('.');
+        StringBuilder buf = new StringBuilder();
+        if (dot >= 0) {
+            buf.append("package ").append(name, 0, dot).append(";\n\n");
+        }
+        buf.append("/**\n");
+        buf.append(" * ").append(grammar.getName()).append(" の字句解析の遷移表を展開したクラス\n");
+        buf.append(" * LexerGenerator で生成したので編集しないこと\n");
+        buf.append(" */\n");
+        buf.append("public class ").append(name.substring(dot + 1)).append(" extends ").append(grammar.getCanonicalName()).append(" {\n");
+        buf.append("    private static final class Tables extends hkoba.parser2.parser.GeneratedTables {\n");
+        buf.append("        private static final Tables INSTANCE = new Tables();\n\n");
+        buf.append("        private Tables() {\n");
+        buf.append("            super(").append(literal(lexer.getAutomaton(false))).append(",\n");
+        buf.append("                    ").append(literal(lexer.getAutomaton(true))).append(");\n");
+        buf.append("        }\n");
+        buf.append("    }\n\n");
+        buf.append("    public ").append(name.substring(dot + 1)).append("() {\n");
+        buf.append("        setGeneratedTables(Tables.INSTANCE);\n");
+        buf.append("        setCompiled(true);\n");
+        buf.append("    }\n");
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    /**
+     * 遷移表を文字列の配列の式にする
+     *
+     * @param automaton
+     * @return
+     */
+    private static String literal(LexerAutomaton automaton) {
+        String[] parts = tableParts(automaton);
+        StringBuilder buf = new StringBuilder("new String[]{");
+        for (int i = 0; i < parts.length; i++) {
+            buf.append(i > 0 ? ",\n                    \"" : "\"");
+            for (char ch : parts[i].toCharArray()) {
+                if (ch == '"' || ch == '\\') {
+                    buf.append('\\').append(ch);
+                } else if (ch >= 0x20 && ch < 0x7f) {
+                    buf.append(ch);
+                } else if (ch < 0x80) {
+                    // 改行などは Unicode エスケープにできない
+                    buf.append(String.format("\\%03o", (int) ch));
+                } else {
+                    buf.append(String.format("\\u%04x", (int) ch));
+                }
+            }
+            buf.append('"');
+        }
+        return buf.append('}').toString();
+    }
+
+    /**
+     * GeneratedTables に渡す遷移表
+     *
+     * @param automaton
+     * @return 先頭は式を識別する値
+     * @throws IllegalStateException 状態数が上限を超える場合
+     */
+    static String[] tableParts(LexerAutomaton automaton) {
+        List<String> parts = new ArrayList<>();
+        parts.add(automaton.fingerprint());
+        parts.addAll(automaton.expand().encode());
+        return parts.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,127 @@
+package hkoba.parser2.parser;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 字句解析の入力
+ * 字句解析の間だけ使うキャッシュを持つ
+ */
+public class LexerSource implements CharSequence {
+    private final CharSequence text;
+
+    /**
+     * 再利用する Matcher
+     */
+    private final Map<Pattern, Matcher> matcherMap = new HashMap<>();
+
+    public LexerSource(CharSequence text) {
+        this.text = text;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    /**
+     * 字句解析で参照できる終了位置
+     *
+     * @param from 開始位置
+     * @return
+     */
+    public int limit(int from) {
+        return text.length();
+    }
+
+    /**
+     * 指定した位置が入力の終わりか
+     *
+     * @param index
+     * @return
+     */
+    public boolean isEnd(int index) {
+        return index >= limit(index);
+    }
+
+    /**
+     * 指定した範囲の文字列
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    public String text(int start, int end) {
+        return text.subSequence(start, end).toString();
+    }
+
+    /**
+     * 文字列を入力と比較できる形にする
+     *
+     * @param text
+     * @return
+     */
+    public CharSequence encode(String text) {
+        return text;
+    }
+
+    /**
+     * 入力全体を保持しているか
+     * false の場合はトークンの文字列をすぐに切り出す
+     *
+     * @return
+     */
+    public boolean isRetained() {
+        return true;
+    }
+
+    /**
+     * 指定した位置より前を参照しないことを通知する
+     *
+     * @param index
+     */
+    public void release(int index) {
+    }
+
+    /**
+     * Matcher で参照する文字列
+     *
+     * @return
+     */
+    protected CharSequence matcherText() {
+        return text;
+    }
+
+    /**
+     * 入力に対する Matcher を取得する
+     * 同じ入力の間は同じインスタンスを返すので、region を設定して使用する
+     *
+     * @param pattern
+     * @return
+     */
+    public Matcher matcher(Pattern pattern) {
+        Matcher result = matcherMap.get(pattern);
+        if (result == null) {
+            result = pattern.matcher(matcherText());
+            matcherMap.put(pattern, result);
+        }
+        return result;
+    }
+}
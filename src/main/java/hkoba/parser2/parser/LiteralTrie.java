@@ -0,0 +1,165 @@
+package hkoba.parser2.parser;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * 文字列一覧のトライ木
+ * 一度たどるだけで一致する最長の文字列を求める
+ */
+final class LiteralTrie implements IPatternMatcher {
+    private static final int[] NO_ID = new int[0];
+
+    /**
+     * 作成中のノード
+     */
+    private static class TrieNode {
+        private final TreeMap<Character, TrieNode> children = new TreeMap<>();
+        private final Set<Integer> idSet = new TreeSet<>();
+    }
+
+    static final class Builder {
+        private final TrieNode root = new TrieNode();
+
+        /**
+         * 一致した時に id を返す文字列を登録する
+         *
+         * @param text
+         * @param id
+         * @return
+         */
+        Builder add(String text, int id) {
+            TrieNode node = root;
+            for (int i = 0; i < text.length(); i++) {
+                node = node.children.computeIfAbsent(text.charAt(i), k -> new TrieNode());
+            }
+            node.idSet.add(id);
+            return this;
+        }
+
+        LiteralTrie build() {
+            return new LiteralTrie(root);
+        }
+    }
+
+    /**
+     * ノードごとの遷移する文字(昇順)
+     */
+    private final char[][] keyList;
+
+    /**
+     * ノードごとの遷移先
+     */
+    private final int[][] childList;
+
+    /**
+     * ノードごとの一致した id
+     */
+    private final int[][] idList;
+
+    private LiteralTrie(TrieNode root) {
+        List<TrieNode> nodeList = new ArrayList<>();
+        nodeList.add(root);
+        for (int i = 0; i < nodeList.size(); i++) {
+            nodeList.addAll(nodeList.get(i).children.values());
+        }
+        Map<TrieNode, Integer> indexMap = new IdentityHashMap<>();
+        for (int i = 0; i < nodeList.size(); i++) {
+            indexMap.put(nodeList.get(i), i);
+        }
+        keyList = new char[nodeList.size()][];
+        childList = new int[nodeList.size()][];
+        idList = new int[nodeList.size()][];
+        for (int i = 0; i < nodeList.size(); i++) {
+            TrieNode node = nodeList.get(i);
+            keyList[i] = new char[node.children.size()];
+            childList[i] = new int[node.children.size()];
+            int ix = 0;
+            for (Map.Entry<Character, TrieNode> entry : node.children.entrySet()) {
+                keyList[i][ix] = entry.getKey();
+                childList[i][ix] = indexMap.get(entry.getValue());
+                ix++;
+            }
+            idList[i] = node.idSet.isEmpty() ? NO_ID : node.idSet.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private int next(int node, char ch) {
+        int ix = Arrays.binarySearch(keyList[node], ch);
+        return ix < 0 ? -1 : childList[node][ix];
+    }
+
+    /**
+     * 先頭から一致させる
+     *
+     * @param text
+     * @param from   開始位置
+     * @param limit  終了位置
+     * @param result id ごとの一致した最長の文字数を設定する
+     * @return 常に true
+     */
+    @Override
+    public boolean match(CharSequence text, int from, int limit, int[] result) {
+        int node = 0;
+        for (int id : idList[node]) {
+            result[id] = 0;
+        }
+        for (int i = from; i < limit; i++) {
+            node = next(node, text.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            for (int id : idList[node]) {
+                result[id] = i + 1 - from;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 先頭から一致する全ての文字列の文字数
+     *
+     * @param text
+     * @param from
+     * @param limit
+     * @param found 一致した文字数を短い順に受け取る
+     */
+    void matchAll(CharSequence text, int from, int limit, IntConsumer found) {
+        int node = 0;
+        if (idList[node].length > 0) {
+            found.accept(0);
+        }
+        for (int i = from; i < limit; i++) {
+            node = next(node, text.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            if (idList[node].length > 0) {
+                found.accept(i + 1 - from);
+            }
+        }
+    }
+
+    /**
+     * 先頭から一致する最長の文字数
+     *
+     * @param text
+     * @param from
+     * @param limit
+     * @return 一致しなければ -1
+     */
+    int longest(CharSequence text, int from, int limit) {
+        int node = 0;
+        int result = idList[node].length > 0 ? 0 : -1;
+        for (int i = from; i < limit; i++) {
+            node = next(node, text.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            if (idList[node].length > 0) {
+                result = i + 1 - from;
+            }
+        }
+        return result;
+    }
+}
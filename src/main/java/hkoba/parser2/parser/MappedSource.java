@@ -0,0 +1,333 @@
+package hkoba.parser2.parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * メモリマップしたファイルを入力とする字句解析の入力
+ * 文字列に読み込まずにバッファを直接参照する
+ * ファイル全体ではなく参照する位置の前後のみをマップするので、2GB を超えるファイルも扱える
+ * ただし位置は int なので、Integer.MAX_VALUE 文字を超える入力は IllegalStateException とする
+ */
+public class MappedSource extends LexerSource {
+    /**
+     * ファイルの一部をマップした範囲
+     * 範囲外を参照した場合は、その位置の前後をマップし直す
+     */
+    private static class Mapping {
+        /**
+         * マップし直す単位
+         * 参照した位置の前後にこの長さ以上を残す
+         */
+        private static final long STEP = 1 << 25;
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private ByteBuffer window;
+
+        /**
+         * window の先頭のファイル上の位置
+         */
+        private long start = 0;
+
+        private Mapping(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        private void map(long position) {
+            start = Math.max(0, (position / STEP - 1) * STEP);
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(STEP * 3, size - start));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private byte get(long position) {
+            long ix = position - start;
+            if (ix < 0 || ix >= window.limit()) {
+                if (position < 0 || position >= size) {
+                    throw new IndexOutOfBoundsException("index: " + position);
+                }
+                map(position);
+                ix = position - start;
+            }
+            return window.get((int) ix);
+        }
+
+        /**
+         * 指定した範囲を参照するバッファ
+         *
+         * @param from
+         * @param to   from から STEP 以内
+         * @return
+         */
+        private ByteBuffer slice(long from, long to) {
+            if (from < start || to > start + window.limit()) {
+                map(from);
+            }
+            ByteBuffer result = window.duplicate();
+            result.limit((int) (to - start));
+            result.position((int) (from - start));
+            return result;
+        }
+    }
+
+    /**
+     * 1バイト1文字の文字コードの参照
+     */
+    private static class ByteView implements CharSequence {
+        private final Mapping mapping;
+
+        /**
+         * true の場合は 0x80 以上を不正な文字とする
+         */
+        private final boolean ascii;
+
+        private ByteView(Mapping mapping, boolean ascii) {
+            if (mapping.size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Input longer than " + Integer.MAX_VALUE + " chars");
+            }
+            this.mapping = mapping;
+            this.ascii = ascii;
+        }
+
+        @Override
+        public int length() {
+            return (int) mapping.size;
+        }
+
+        @Override
+        public char charAt(int index) {
+            byte b = mapping.get(index);
+            if (ascii && b < 0) {
+                return '\uFFFD';
+            }
+            return (char) (b & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] result = new char[end - start];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = charAt(start + i);
+            }
+            return new String(result);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+
+    /**
+     * 複数バイトの文字コードの参照
+     * ブロックごとに先頭のバイト位置を記録し、参照したブロックのみを復号してキャッシュする
+     */
+    private static class DecodedView implements CharSequence {
+        /**
+         * ブロックの文字数
+         */
+        private static final int BLOCK = 4096;
+
+        /**
+         * 復号したブロックを保持する数
+         */
+        private static final int CACHE = 8;
+
+        private final Mapping mapping;
+
+        private final CharsetDecoder decoder;
+
+        /**
+         * ブロックを復号するのに読み込むバイト数
+         */
+        private final int blockBytes;
+
+        /**
+         * ブロックごとの先頭の文字位置
+         */
+        private int[] charStarts = new int[16];
+
+        /**
+         * ブロックごとの先頭のバイト位置
+         */
+        private long[] byteStarts = new long[16];
+
+        /**
+         * 位置がわかっているブロック数
+         */
+        private int blockCount = 0;
+
+        private boolean complete;
+
+        private final Map<Integer, char[]> cache = new LinkedHashMap<Integer, char[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+                return size() > CACHE;
+            }
+        };
+
+        /**
+         * 最後に参照したブロック
+         */
+        private char[] current = new char[0];
+
+        private int currentStart = 0;
+
+        private DecodedView(Mapping mapping, Charset charset) {
+            this.mapping = mapping;
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.blockBytes = (int) Math.ceil(BLOCK * (double) charset.newEncoder().maxBytesPerChar());
+            this.complete = mapping.size == 0;
+        }
+
+        /**
+         * ブロックを復号する
+         * 未登録のブロックの場合は次のブロックの位置を登録する
+         *
+         * @param block
+         * @return
+         */
+        private char[] decode(int block) {
+            long from = byteStarts[block];
+            long to = Math.min(mapping.size, from + blockBytes);
+            ByteBuffer in = mapping.slice(from, to);
+            int offset = in.position();
+            CharBuffer out = CharBuffer.allocate(BLOCK);
+            decoder.reset();
+            if (decoder.decode(in, out, to == mapping.size).isUnderflow() && to == mapping.size) {
+                decoder.flush(out);
+            }
+            char[] result = Arrays.copyOf(out.array(), out.position());
+            if (block == blockCount) {
+                if (result.length == 0) {
+                    complete = true;
+                    return result;
+                }
+                if ((long) charStarts[block] + result.length > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Input longer than " + Integer.MAX_VALUE + " chars");
+                }
+                if (blockCount + 1 == charStarts.length) {
+                    charStarts = Arrays.copyOf(charStarts, charStarts.length * 2);
+                    byteStarts = Arrays.copyOf(byteStarts, byteStarts.length * 2);
+                }
+                charStarts[block + 1] = charStarts[block] + result.length;
+                byteStarts[block + 1] = from + in.position() - offset;
+                blockCount++;
+                complete = byteStarts[block + 1] >= mapping.size;
+            }
+            cache.put(block, result);
+            return result;
+        }
+
+        /**
+         * 指定した文字位置の手前まで復号する
+         *
+         * @param end
+         * @return 復号した終了位置
+         */
+        private int fill(int end) {
+            while (!complete && charStarts[blockCount] < end) {
+                decode(blockCount);
+            }
+            return Math.min(end, charStarts[blockCount]);
+        }
+
+        @Override
+        public int length() {
+            return charStarts[blockCount];
+        }
+
+        @Override
+        public char charAt(int index) {
+            int ix = index - currentStart;
+            if (ix >= 0 && ix < current.length) {
+                return current[ix];
+            }
+            if (index < 0 || index >= fill(index + 1)) {
+                throw new IndexOutOfBoundsException("index: " + index);
+            }
+            int block = Arrays.binarySearch(charStarts, 0, blockCount + 1, index);
+            if (block < 0) {
+                block = -block - 2;
+            }
+            char[] chars = cache.get(block);
+            current = chars != null ? chars : decode(block);
+            currentStart = charStarts[block];
+            return current[index - currentStart];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] result = new char[end - start];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = charAt(start + i);
+            }
+            return new String(result);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, fill(Integer.MAX_VALUE)).toString();
+        }
+    }
+
+    /**
+     * 複数バイトの文字コードの場合の参照
+     */
+    private final DecodedView decoded;
+
+    /**
+     * 先読みする文字数
+     */
+    private final int lookahead;
+
+    /**
+     * @param channel
+     * @param charset
+     * @param lookahead 複数バイトの文字コードの場合に字句解析で先読みする文字数
+     * @throws IOException
+     */
+    public MappedSource(FileChannel channel, Charset charset, int lookahead) throws IOException {
+        this(view(new Mapping(channel), charset), lookahead);
+    }
+
+    private MappedSource(CharSequence view, int lookahead) {
+        super(view);
+        this.decoded = view instanceof DecodedView ? (DecodedView) view : null;
+        this.lookahead = lookahead;
+    }
+
+    private static CharSequence view(Mapping mapping, Charset charset) {
+        if (StandardCharsets.ISO_8859_1.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+            return new ByteView(mapping, StandardCharsets.US_ASCII.equals(charset));
+        }
+        return new DecodedView(mapping, charset);
+    }
+
+    @Override
+    public int limit(int from) {
+        if (decoded != null) {
+            return decoded.fill((int) Math.min((long) from + lookahead, Integer.MAX_VALUE));
+        }
+        return super.limit(from);
+    }
+}
@@ -0,0 +1,148 @@
+package hkoba.parser2.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Reader から読み込む字句解析の入力
+ * 解放された位置より前は破棄するので、保持するのは先読みの範囲のみとなる
+ * 位置は int で扱うので、Integer.MAX_VALUE 文字を超える入力は IllegalStateException とする
+ */
+public class ReaderSource extends LexerSource {
+    /**
+     * 読み込んだ範囲の文字列
+     * 位置は入力の先頭からの位置で扱う
+     */
+    private static class Window implements CharSequence {
+        private final Reader reader;
+
+        private char[] buf;
+
+        /**
+         * buf の先頭の位置
+         */
+        private int base = 0;
+
+        private int count = 0;
+
+        /**
+         * これより前は破棄してよい位置
+         */
+        private int released = 0;
+
+        private boolean eof = false;
+
+        private Window(Reader reader, int size) {
+            this.reader = reader;
+            this.buf = new char[Math.max(size, 16)];
+        }
+
+        /**
+         * 指定した位置の手前まで読み込む
+         *
+         * @param end
+         * @return 読み込んだ終了位置
+         */
+        private int fill(int end) {
+            try {
+                // 位置の上限まで読み込んだ場合は、続きがあるかを調べる
+                while ((base + count < end || base + count == Integer.MAX_VALUE) && !eof) {
+                    if (count == buf.length) {
+                        // 解放済みの範囲を詰めて、足りなければ広げる
+                        int drop = released - base;
+                        System.arraycopy(buf, drop, buf, 0, count - drop);
+                        base += drop;
+                        count -= drop;
+                        if (count > buf.length / 2) {
+                            buf = Arrays.copyOf(buf, buf.length * 2);
+                        }
+                    }
+                    if (base + count == Integer.MAX_VALUE) {
+                        if (reader.read() >= 0) {
+                            throw new IllegalStateException("Input longer than " + Integer.MAX_VALUE + " chars");
+                        }
+                        eof = true;
+                        break;
+                    }
+                    int size = reader.read(buf, count, Math.min(buf.length - count, Integer.MAX_VALUE - base - count));
+                    if (size < 0) {
+                        eof = true;
+                    } else {
+                        count += size;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return Math.min(end, base + count);
+        }
+
+        private void release(int index) {
+            released = Math.max(released, Math.min(index, base + count));
+        }
+
+        @Override
+        public int length() {
+            return base + count;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < base) {
+                throw new IndexOutOfBoundsException("released: " + index);
+            }
+            return buf[index - base];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < base) {
+                throw new IndexOutOfBoundsException("released: " + start);
+            }
+            return new String(buf, start - base, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, count);
+        }
+    }
+
+    private final Window window;
+
+    /**
+     * 先読みする文字数
+     */
+    private final int lookahead;
+
+    /**
+     * @param reader
+     * @param lookahead 字句解析で先読みする文字数。これより長いトークンは途中までとなる
+     */
+    public ReaderSource(Reader reader, int lookahead) {
+        this(new Window(reader, lookahead * 2), lookahead);
+    }
+
+    private ReaderSource(Window window, int lookahead) {
+        super(window);
+        this.window = window;
+        this.lookahead = lookahead;
+    }
+
+    @Override
+    public int limit(int from) {
+        return window.fill((int) Math.min((long) from + lookahead, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public void release(int index) {
+        window.release(index);
+    }
+
+    @Override
+    public boolean isRetained() {
+        return false;
+    }
+}
@@ -0,0 +1,258 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenContext;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 字句解析の結果をまとめた配列
+ * トークンごとにオブジェクトを作らず、種別・開始位置・終了位置・値を別々の配列で持つ
+ * 同じ開始位置のトークンはまとめて、種別の順に並ぶ
+ */
+public class TokenBuffer {
+    private final LexerSource source;
+
+    /**
+     * パターンごとの種別
+     */
+    private final ITokenType[] patternTypes;
+
+    /**
+     * パターンごとの値を求める処理
+     */
+    private final List<Function<String, Object>> resolvers;
+
+    private int size = 0;
+
+    private int[] typeIndexes = new int[64];
+
+    private int[] starts = new int[64];
+
+    private int[] ends = new int[64];
+
+    private int[] patterns = new int[64];
+
+    /**
+     * 求めた値
+     */
+    private Object[] values = new Object[64];
+
+    private int groupCount = 0;
+
+    /**
+     * 開始位置(昇順)
+     */
+    private int[] groupStarts = new int[64];
+
+    /**
+     * 開始位置ごとの先頭のトークン
+     */
+    private int[] groupFirsts = new int[64];
+
+    /**
+     * 開始位置ごとのトークン数
+     */
+    private int[] groupSizes = new int[64];
+
+    /**
+     * groupStarts が昇順に並んでいる数
+     * これより後のまとまりは lateGroups で参照する
+     */
+    private int sortedCount = 0;
+
+    /**
+     * 前に戻って追加したまとまり
+     * key: 開始位置、value: まとまりのインデックス
+     * 配列の途中に挿入すると追加ごとに全体をずらすことになるので、別に持つ
+     */
+    private final IntMap<Integer> lateGroups = new IntMap<>();
+
+    /**
+     * コンテキストの作成
+     */
+    Supplier<TokenContext> contextFactory;
+
+    TokenBuffer(LexerSource source, ITokenType[] patternTypes, List<Function<String, Object>> resolvers) {
+        this.source = source;
+        this.patternTypes = patternTypes;
+        this.resolvers = resolvers;
+    }
+
+    /**
+     * トークンを追加する
+     *
+     * @param typeIndex 字句解析のテーブルでの種別のインデックス
+     * @param start
+     * @param end
+     * @param pattern 一致したパターンの id
+     */
+    void add(int typeIndex, int start, int end, int pattern) {
+        if (size == typeIndexes.length) {
+            int length = size * 2;
+            typeIndexes = Arrays.copyOf(typeIndexes, length);
+            starts = Arrays.copyOf(starts, length);
+            ends = Arrays.copyOf(ends, length);
+            patterns = Arrays.copyOf(patterns, length);
+            values = Arrays.copyOf(values, length);
+        }
+        typeIndexes[size] = typeIndex;
+        starts[size] = start;
+        ends[size] = end;
+        patterns[size] = pattern;
+        size++;
+    }
+
+    /**
+     * 直前に追加したトークンを開始位置としてまとめる
+     *
+     * @param start
+     * @param first 先頭のトークン
+     */
+    void addGroup(int start, int first) {
+        if (groupCount == groupStarts.length) {
+            int length = groupCount * 2;
+            groupStarts = Arrays.copyOf(groupStarts, length);
+            groupFirsts = Arrays.copyOf(groupFirsts, length);
+            groupSizes = Arrays.copyOf(groupSizes, length);
+        }
+        int ix = groupCount;
+        groupStarts[ix] = start;
+        groupFirsts[ix] = first;
+        groupSizes[ix] = size - first;
+        groupCount++;
+        if (sortedCount == ix && (ix == 0 || groupStarts[ix - 1] < start)) {
+            sortedCount++;
+        } else {
+            // 前に戻った場合は末尾に追加して別に引けるようにする
+            lateGroups.put(start, ix);
+        }
+    }
+
+    /**
+     * 別のバッファのトークンを末尾に追加する
+     * other の開始位置は全てこのバッファの開始位置より後であること
+     * どちらも前に戻って追加したまとまりがないこと
+     *
+     * @param other
+     */
+    void append(TokenBuffer other) {
+        int offset = size;
+        if (size + other.size > typeIndexes.length) {
+            int length = Math.max(size + other.size, size * 2);
+            typeIndexes = Arrays.copyOf(typeIndexes, length);
+            starts = Arrays.copyOf(starts, length);
+            ends = Arrays.copyOf(ends, length);
+            patterns = Arrays.copyOf(patterns, length);
+            values = Arrays.copyOf(values, length);
+        }
+        System.arraycopy(other.typeIndexes, 0, typeIndexes, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.ends, 0, ends, size, other.size);
+        System.arraycopy(other.patterns, 0, patterns, size, other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+        if (groupCount + other.groupCount > groupStarts.length) {
+            int length = Math.max(groupCount + other.groupCount, groupCount * 2);
+            groupStarts = Arrays.copyOf(groupStarts, length);
+            groupFirsts = Arrays.copyOf(groupFirsts, length);
+            groupSizes = Arrays.copyOf(groupSizes, length);
+        }
+        System.arraycopy(other.groupStarts, 0, groupStarts, groupCount, other.groupCount);
+        System.arraycopy(other.groupSizes, 0, groupSizes, groupCount, other.groupCount);
+        for (int i = 0; i < other.groupCount; i++) {
+            groupFirsts[groupCount + i] = other.groupFirsts[i] + offset;
+        }
+        groupCount += other.groupCount;
+        sortedCount = groupCount;
+    }
+
+    /**
+     * 開始位置のまとまり
+     *
+     * @param start
+     * @return 字句解析していない場合は -1
+     */
+    int group(int start) {
+        int ix = Arrays.binarySearch(groupStarts, 0, sortedCount, start);
+        if (ix >= 0) {
+            return ix;
+        }
+        Integer late = lateGroups.get(start);
+        return late != null ? late : -1;
+    }
+
+    int groupFirst(int group) {
+        return groupFirsts[group];
+    }
+
+    int groupSize(int group) {
+        return groupSizes[group];
+    }
+
+    LexerSource getSource() {
+        return source;
+    }
+
+    /**
+     * トークン数
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 字句解析のテーブルでの種別のインデックス
+     * ITokenType#getTypeId() とは異なり、同じ字句解析で作成したバッファの間でのみ比較できる
+     *
+     * @param i
+     * @return
+     */
+    public int getTypeIndex(int i) {
+        return typeIndexes[i];
+    }
+
+    public ITokenType getType(int i) {
+        return patternTypes[patterns[i]];
+    }
+
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    public String getText(int i) {
+        return source.text(starts[i], ends[i]);
+    }
+
+    /**
+     * 値は参照された時点で求める
+     *
+     * @param i
+     * @return
+     */
+    public Object getValue(int i) {
+        Function<String, Object> resolver = resolvers.get(patterns[i]);
+        if (values[i] == null && resolver != null) {
+            values[i] = resolver.apply(getText(i));
+        }
+        return values[i];
+    }
+
+    /**
+     * 先頭のコンテキスト
+     *
+     * @return
+     */
+    public TokenContext getContext() {
+        return contextFactory.get();
+    }
+}
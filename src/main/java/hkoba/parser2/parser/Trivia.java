@@ -0,0 +1,136 @@
+package hkoba.parser2.parser;
+
+import java.util.List;
+
+/**
+ * トークンの間の空白とコメント
+ * 空白は文字種のビットマップで判定し、コメントと合わせて一度に読み飛ばす
+ */
+final class Trivia {
+    /**
+     * ASCII の空白のビットマップ
+     */
+    private final long[] asciiBits = new long[2];
+
+    /**
+     * ASCII 以外の空白
+     */
+    private final String otherSpaces;
+
+    /**
+     * コメントの開始文字列
+     */
+    private final String[] starts;
+
+    /**
+     * コメントの終了文字列
+     * 行コメントは null
+     */
+    private final String[] ends;
+
+    /**
+     * バイト列の入力に対する開始文字列
+     */
+    private final String[] byteStarts;
+
+    /**
+     * バイト列の入力に対する終了文字列
+     */
+    private final String[] byteEnds;
+
+    /**
+     * @param whiteSpaces 空白とする文字
+     * @param commentList 開始と終了の文字列。行コメントは終了が null
+     */
+    Trivia(String whiteSpaces, List<String[]> commentList) {
+        StringBuilder others = new StringBuilder();
+        for (int i = 0; i < whiteSpaces.length(); i++) {
+            char ch = whiteSpaces.charAt(i);
+            if (ch < 128) {
+                asciiBits[ch >> 6] |= 1L << ch;
+            } else {
+                others.append(ch);
+            }
+        }
+        otherSpaces = others.toString();
+        starts = new String[commentList.size()];
+        ends = new String[commentList.size()];
+        byteStarts = new String[commentList.size()];
+        byteEnds = new String[commentList.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = commentList.get(i)[0];
+            ends[i] = commentList.get(i)[1];
+            byteStarts[i] = ByteSource.toBytes(starts[i]);
+            byteEnds[i] = ends[i] != null ? ByteSource.toBytes(ends[i]) : null;
+        }
+    }
+
+    /**
+     * 空白か
+     *
+     * @param ch
+     * @param bytes バイト列の入力か
+     * @return
+     */
+    boolean isSpace(char ch, boolean bytes) {
+        if (ch < 128) {
+            return (asciiBits[ch >> 6] & (1L << ch)) != 0;
+        }
+        return !bytes && otherSpaces.indexOf(ch) >= 0;
+    }
+
+    /**
+     * 空白とコメントを読み飛ばす
+     * 閉じていないブロックコメントは入力の終わりまでとする
+     *
+     * @param source
+     * @param from
+     * @return 読み飛ばした後の位置
+     */
+    int skip(LexerSource source, int from) {
+        boolean bytes = source instanceof ByteSource;
+        String[] startList = bytes ? byteStarts : starts;
+        String[] endList = bytes ? byteEnds : ends;
+        int ix = from;
+        loop:
+        while (!source.isEnd(ix)) {
+            char ch = source.charAt(ix);
+            if (isSpace(ch, bytes)) {
+                ix++;
+                continue;
+            }
+            for (int i = 0; i < startList.length; i++) {
+                String start = startList[i];
+                if (start.charAt(0) == ch && HkobaLexer.startsWith(source, ix, source.limit(ix), start)) {
+                    ix = skipComment(source, ix + start.length(), endList[i]);
+                    continue loop;
+                }
+            }
+            break;
+        }
+        return ix;
+    }
+
+    /**
+     * コメントの終わりまで読み飛ばす
+     *
+     * @param source
+     * @param from
+     * @param end    null の場合は改行の手前まで
+     * @return
+     */
+    private int skipComment(LexerSource source, int from, String end) {
+        int ix = from;
+        while (!source.isEnd(ix)) {
+            if (end == null) {
+                if (source.charAt(ix) == '\n') {
+                    return ix;
+                }
+            } else if (source.charAt(ix) == end.charAt(0) && HkobaLexer.startsWith(source, ix, source.limit(ix), end)) {
+                return ix + end.length();
+            }
+            ix++;
+        }
+        return ix;
+    }
+}
@@ -0,0 +1,104 @@
+package hkoba.parser.analyze;
+
+import hkoba.parser.TokenData;
+import hkoba.parser.TokenMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class LexicalAnalyzerTest {
+    private static LexicalAnalyzer analyzer(boolean substring) {
+        LexicalAnalyzer lex = new LexicalAnalyzer();
+        lex.entry("NUM").pattern(wrap(LexicalAnalyzer.regex("[0-9]+", "[0-9]+\\.[0-9]*"), substring));
+        lex.entry("ID").pattern(wrap(LexicalAnalyzer.regex("[a-z]\\w*"), substring));
+        lex.entry("HEAD").pattern(wrap(LexicalAnalyzer.regex("^x", "\\bx"), substring));
+        lex.entry("OP").pattern(wrap(LexicalAnalyzer.word("+", "+=", "-"), substring));
+        lex.entry("CHAR").pattern(wrap(LexicalAnalyzer.left(1), substring));
+        return lex;
+    }
+
+    /**
+     * 残りの入力を切り出して渡す関数にする
+     */
+    private static Function<String, String> wrap(Function<String, String> parser, boolean substring) {
+        return substring ? s -> parser.apply(s) : parser;
+    }
+
+    private static List<String> dump(TokenMap map) {
+        List<String> list = new ArrayList<>();
+        while (!map.isEof()) {
+            Optional<TokenData> token = map.getToken();
+            if (!token.isPresent()) {
+                break;
+            }
+            List<String> names = new ArrayList<>();
+            for (TokenData data : map.getTokens()) {
+                names.add(data.getType() + ":" + ((TokenData.TextToken) data).getText());
+            }
+            names.sort(null);
+            list.add(map.getIndex().getIndex() + names.toString());
+            map = token.get().next();
+        }
+        return list;
+    }
+
+    @Test
+    public void sameAsSubstring() {
+        String chars = "ax1. +-=\n";
+        Random random = new Random(1);
+        for (int n = 0; n < 200; n++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                sb.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            String text = sb.toString();
+            assertEquals(text, dump(analyzer(true).getTokens(text)), dump(analyzer(false).getTokens(text)));
+        }
+    }
+
+    @Test
+    public void anchorsAtIndex() {
+        // 境界は切り出した場合と同じく開始位置で判定する
+        TokenMap map = analyzer(false).getTokens("ax x");
+        assertFalse(map.hasToken(TokenData.token("HEAD")));
+        map = map.next(1);
+        assertTrue(map.hasToken(TokenData.token("HEAD")));
+        map = map.next(3);
+        assertTrue(map.hasToken(TokenData.token("HEAD")));
+    }
+
+    private static long elapsed(LexicalAnalyzer lex, String text) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            long start = System.nanoTime();
+            TokenMap map = lex.getTokens(text);
+            while (!map.isEof()) {
+                map = map.getToken().get().next();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    @Test
+    public void fasterThanSubstring() {
+        // 位置ごとに残りを切り出すと入力の長さの2乗に比例する
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 24000; i++) {
+            sb.append("abc + ").append(i).append('\n');
+        }
+        String text = sb.toString();
+        LexicalAnalyzer region = analyzer(false);
+        LexicalAnalyzer substring = analyzer(true);
+        elapsed(region, text);
+        long regionTime = elapsed(region, text);
+        long substringTime = elapsed(substring, text);
+        assertTrue(regionTime + " " + substringTime, regionTime * 2 < substringTime);
+    }
+}
@@ -0,0 +1,115 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenData;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class CutTest {
+    enum CutType implements ITokenType.EToken {
+        NUM,
+        SEMI,
+        COMMA,
+        EQ,
+        PAIR,
+        STMT,
+        PROGRAM
+    }
+
+    /**
+     * 選ばれないパターンにカットを含む文法
+     */
+    static class PairParser extends HkobaParser {
+        PairParser() {
+            new Token(CutType.NUM) {{
+                _reg("[0-9]+");
+            }};
+            new Token(CutType.SEMI) {{
+                _t(";");
+            }};
+            new Token(CutType.COMMA) {{
+                _t(",");
+            }};
+            new Token(CutType.EQ) {{
+                _t("=");
+            }};
+
+            new Node(CutType.PAIR) {{
+                pattern(CutType.NUM, cut(), CutType.SEMI);
+                pattern(CutType.NUM, cut());
+                pattern(CutType.NUM, CutType.COMMA, CutType.NUM);
+            }};
+        }
+    }
+
+    /**
+     * 左再帰で文を繋ぎ、文ごとにカットする文法
+     */
+    static class ProgramParser extends HkobaParser {
+        ProgramParser() {
+            new Token(CutType.NUM) {{
+                _reg("[0-9]+");
+            }};
+            new Token(CutType.SEMI) {{
+                _t(";");
+            }};
+            new Token(CutType.COMMA) {{
+                _t(",");
+            }};
+            new Token(CutType.EQ) {{
+                _t("=");
+            }};
+
+            new Node(CutType.STMT) {{
+                pattern(CutType.NUM, CutType.EQ, CutType.NUM, CutType.SEMI);
+                pattern(CutType.NUM, CutType.SEMI);
+            }};
+
+            new Node(CutType.PROGRAM) {{
+                pattern(CutType.PROGRAM, CutType.STMT, cut());
+                pattern(CutType.STMT, cut());
+            }};
+        }
+    }
+
+    @Test
+    public void cutInDiscardedPattern() {
+        // 読み直せない入力でも、選ばれなかったパターンのカットでは破棄しない
+        Optional<TokenData> token = new PairParser().getContext(new StringReader("1,2")).getToken(CutType.PAIR);
+        assertTrue(token.isPresent());
+        assertEquals(3, token.get().getEnd().getIndex());
+        assertEquals(3, ((TokenData.NodeToken) token.get()).getChildren().size());
+    }
+
+    @Test
+    public void cutInSelectedPattern() {
+        Optional<TokenData> token = new PairParser().getContext(new StringReader("1;")).getToken(CutType.PAIR);
+        assertTrue(token.isPresent());
+        assertEquals(2, token.get().getEnd().getIndex());
+    }
+
+    @Test
+    public void releaseEachStatement() {
+        int count = 10000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i % 3 == 0 ? i + " = " + i + ";\n" : i + ";\n");
+        }
+        Optional<TokenData> token = new ProgramParser().getContext(new StringReader(sb.toString())).getToken(CutType.PROGRAM);
+        assertTrue(token.isPresent());
+        assertEquals(sb.length() - 1, token.get().getEnd().getIndex());
+        int statements = 0;
+        TokenData node = token.get();
+        while (node.getType() == CutType.PROGRAM) {
+            statements++;
+            node = ((TokenData.NodeToken) node).getChildren().get(0);
+        }
+        assertEquals(count, statements);
+        // 破棄した位置の行は求められない
+        assertEquals(0, node.getStart().getRow());
+    }
+}
@@ -0,0 +1,117 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenContext;
+import hkoba.parser2.TokenData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DocumentTest {
+    enum DocType implements ITokenType.EToken {
+        NUM,
+        ID,
+        KW,
+        OP,
+        STR
+    }
+
+    static class Grammar extends HkobaLexer {
+        Grammar(String mode) {
+            new Token(DocType.NUM) {{
+                _reg("0", "[1-9][0-9]*", "[0-9]*\\.?[0-9]+", "0x[0-9A-F]+");
+            }};
+            new Token(DocType.ID) {{
+                _reg("[a-z_]\\w*");
+            }};
+            new Token(DocType.KW) {{
+                _t("if", "in", "int");
+            }};
+            new Token(DocType.OP) {{
+                _t("+", "-", "*", "**", "/", "//", "=", "==");
+            }};
+            new Token(DocType.STR) {{
+                // 閉じるまで先を参照する
+                _reg("\"[^\"]*\"", "'(?:[^'\\\\]|\\\\.)*'");
+            }};
+            setCompiled(mode.equals("compiled"));
+            setLazy(mode.equals("lazy"));
+        }
+    }
+
+    private static String dump(TokenContext context) {
+        List<String> list = new ArrayList<>();
+        for (TokenData token : context.getTokens()) {
+            TokenData.TextToken text = (TokenData.TextToken) token;
+            list.add(text.getType().getTokenName() + ":" + text.getText());
+        }
+        Collections.sort(list);
+        return context.getIndex() + list.toString();
+    }
+
+    private static void editSameAsFresh(String mode) {
+        String chars = "ab0123xif n\"'\\.=*/+-\n\u00e9";
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder("if x1 == 0x1F int\n 12.5 ** 3 // 'a\\'b' \"s t\" inx 007 ");
+        for (int i = 0; i < 300; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        Grammar lexer = new Grammar(mode);
+        HkobaLexer.Document document = lexer.newDocument(sb.toString());
+        for (int n = 0; n < 200; n++) {
+            String text = document.getText();
+            if (n % 2 == 0) {
+                // 一部の位置だけ字句解析してから編集する
+                for (int i = 0; i < text.length(); i += 1 + random.nextInt(5)) {
+                    lexer.getContext(document).seek(i).getTokens();
+                }
+            }
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+            StringBuilder inserted = new StringBuilder();
+            for (int i = random.nextInt(4); i > 0; i--) {
+                inserted.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            document.applyEdit(offset, removed, inserted.toString());
+
+            String edited = document.getText();
+            assertEquals(new StringBuilder(text).replace(offset, offset + removed, inserted.toString()).toString(), edited);
+            Grammar fresh = new Grammar(mode);
+            for (int i = 0; i < edited.length(); i++) {
+                assertEquals(mode + " " + n + " " + i, dump(fresh.getLexerContext(edited).seek(i)), dump(lexer.getContext(document).seek(i)));
+            }
+        }
+    }
+
+    @Test
+    public void editSameAsFresh() {
+        editSameAsFresh("");
+    }
+
+    @Test
+    public void editSameAsFreshCompiled() {
+        editSameAsFresh("compiled");
+    }
+
+    @Test
+    public void editSameAsFreshLazy() {
+        editSameAsFresh("lazy");
+    }
+
+    @Test
+    public void editOutOfRange() {
+        HkobaLexer.Document document = new Grammar("").newDocument("abc");
+        try {
+            document.applyEdit(2, 2, "");
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // 範囲外
+        }
+        assertEquals("abc", document.getText());
+    }
+}
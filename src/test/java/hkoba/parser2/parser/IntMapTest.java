@@ -0,0 +1,53 @@
+package hkoba.parser2.parser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class IntMapTest {
+    @Test
+    public void sameAsTreeMap() {
+        IntMap<Integer> map = new IntMap<>();
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        Random random = new Random(1);
+        int base = 0;
+        for (int n = 0; n < 100000; n++) {
+            if (random.nextInt(50) == 0) {
+                base += random.nextInt(200);
+                List<Integer> removed = new ArrayList<>();
+                map.removeBelow(base, removed::add);
+                List<Integer> below = new ArrayList<>(expected.headMap(base).values());
+                expected.headMap(base).clear();
+                removed.sort(null);
+                below.sort(null);
+                assertEquals(below, removed);
+            } else {
+                int key = base + random.nextInt(500) - 50;
+                map.put(key, n);
+                expected.put(key, n);
+            }
+            int key = base + random.nextInt(600) - 100;
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void removeAll() {
+        IntMap<String> map = new IntMap<>();
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, String.valueOf(i));
+        }
+        map.removeBelow(9990);
+        assertNull(map.get(0));
+        assertEquals("9995", map.get(9995));
+        map.removeBelow(Integer.MAX_VALUE);
+        assertNull(map.get(9995));
+        map.put(-1, "x");
+        assertEquals("x", map.get(-1));
+    }
+}
@@ -0,0 +1,95 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenData;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class LeftRecursionTest {
+    enum ExprType implements ITokenType.EToken {
+        NUM,
+        MINUS,
+        EXPR
+    }
+
+    /**
+     * E := NUM | E '-' NUM
+     */
+    static class MinusParser extends HkobaParser {
+        MinusParser() {
+            new Token(ExprType.NUM) {{
+                _reg("[0-9]+").value(s -> new BigDecimal(s));
+            }};
+            new Token(ExprType.MINUS) {{
+                _t("-");
+            }};
+
+            new Node(ExprType.EXPR) {{
+                pattern(ExprType.NUM).value(a -> a.getValue(BigDecimal.class).get());
+                pattern(ExprType.EXPR, ExprType.MINUS, ExprType.NUM)
+                        .value(a -> ((BigDecimal) a.get(0).getValue()).subtract((BigDecimal) a.get(2).getValue()));
+            }};
+        }
+    }
+
+    private static String chain(int count) {
+        StringBuilder sb = new StringBuilder("0");
+        for (int i = 0; i < count; i++) {
+            sb.append("-1");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 左端まで辿った再帰の深さ
+     */
+    private static int depth(TokenData token) {
+        int depth = 0;
+        while (((TokenData.NodeToken) token).getChildren().size() == 3) {
+            depth++;
+            token = ((TokenData.NodeToken) token).getChildren().get(0);
+        }
+        return depth;
+    }
+
+    @Test
+    public void leftAssociative() {
+        Optional<TokenData> token = new MinusParser().getContext("10 - 3 - 2").getToken(ExprType.EXPR);
+        assertTrue(token.isPresent());
+        assertEquals(new BigDecimal(5), token.get().getValue());
+        assertEquals(2, depth(token.get()));
+        assertEquals(new BigDecimal(7), new MinusParser().getContext("7").getToken(ExprType.EXPR).get().getValue());
+    }
+
+    @Test
+    public void longChain() {
+        int count = 100000;
+        String text = chain(count);
+        Optional<TokenData> token = new MinusParser().getContext(text).getToken(ExprType.EXPR);
+        assertTrue(token.isPresent());
+        assertEquals(text.length(), token.get().getEnd().getIndex());
+        assertEquals(count, depth(token.get()));
+    }
+
+    private static long elapsed(String text) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            long start = System.nanoTime();
+            assertTrue(new MinusParser().getContext(text).getToken(ExprType.EXPR).isPresent());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    @Test
+    public void linearInLength() {
+        // 伸ばすたびに先頭から読み直すと長さの2乗に比例する
+        long smallTime = elapsed(chain(50000));
+        long largeTime = elapsed(chain(200000));
+        assertTrue(smallTime + " " + largeTime, largeTime < smallTime * 8);
+    }
+}
@@ -0,0 +1,127 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenContext;
+import hkoba.parser2.TokenData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class LexerAutomatonTest {
+    enum LexType implements ITokenType.EToken {
+        NUM,
+        ID,
+        STR,
+        ALT
+    }
+
+    static class AltLexer extends HkobaLexer {
+        AltLexer(boolean compiled) {
+            new Token(LexType.NUM) {{
+                _reg("[0-9]+", "[0-9]*\\.?[0-9]+");
+            }};
+            new Token(LexType.ID) {{
+                _reg("[a-z]\\w*");
+            }};
+            new Token(LexType.STR) {{
+                _reg("\"([^\"\\\\]|\\\\.)*\"");
+            }};
+            new Token(LexType.ALT) {{
+                _reg("a|ab", "(b|bc)?c", "x?x");
+            }};
+            setCompiled(compiled);
+        }
+    }
+
+    @Test
+    public void deterministic() {
+        assertNotNull(LexerAutomaton.parse("[0-9]+"));
+        assertNotNull(LexerAutomaton.parse("[a-z]+[0-9]*"));
+        assertNotNull(LexerAutomaton.parse("(a|b)*c"));
+        assertNotNull(LexerAutomaton.parse("\"([^\"\\\\]|\\\\.)*\""));
+        assertNotNull(LexerAutomaton.parse(".+"));
+    }
+
+    @Test
+    public void lengthDependsOnBranch() {
+        assertNull(LexerAutomaton.parse("a|ab"));
+        assertNull(LexerAutomaton.parse("a?a"));
+        assertNull(LexerAutomaton.parse("[0-9]*\\.?[0-9]+"));
+        assertNull(LexerAutomaton.parse("(|a)b"));
+        assertNull(LexerAutomaton.parse(".{2}"));
+    }
+
+    @Test
+    public void sameAsLookingAt() {
+        String[] regexes = {"[ab]+c?", "(a|bc)*", "[^a]+", "a(b|c)?", ".[ab]*", "(?:ab)+c?"};
+        String chars = "abc\uD83D\uDE00";
+        Random random = new Random(1);
+        for (String regex : regexes) {
+            LexerAutomaton.Expr expr = LexerAutomaton.parse(regex);
+            assertNotNull(regex, expr);
+            LexerAutomaton automaton = new LexerAutomaton.Builder().add(0, expr).build();
+            Pattern pattern = Pattern.compile(regex);
+            for (int n = 0; n < 1000; n++) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = random.nextInt(8); i > 0; i--) {
+                    sb.append(chars.charAt(random.nextInt(chars.length())));
+                }
+                int[] result = {-1};
+                assertTrue(automaton.match(sb, 0, sb.length(), result));
+                Matcher matcher = pattern.matcher(sb);
+                assertEquals(regex + " " + sb, matcher.lookingAt() ? matcher.end() : -1, result[0]);
+            }
+        }
+    }
+
+    @Test
+    public void stateLimit() {
+        // 繰り返しの周期ごとの位置の組み合わせで状態が増える
+        LexerAutomaton.Builder builder = new LexerAutomaton.Builder();
+        for (int i = 1; i <= 15; i++) {
+            builder.add(i - 1, LexerAutomaton.parse("([ab]{" + i + "})*"));
+        }
+        LexerAutomaton automaton = builder.build();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LexerAutomaton.MAX_STATES * 2; i++) {
+            sb.append('a');
+        }
+        int[] result = new int[15];
+        assertTrue(automaton.match(sb, 0, 100, result));
+        assertEquals(100, result[0]);
+        assertFalse(automaton.match(sb, 0, sb.length(), result));
+        try {
+            automaton.expand();
+            fail();
+        } catch (IllegalStateException e) {
+            // 表にできない
+        }
+    }
+
+    private static String dump(TokenContext context) {
+        List<String> list = new ArrayList<>();
+        for (TokenData token : context.getTokens()) {
+            TokenData.TextToken text = (TokenData.TextToken) token;
+            list.add(text.getType().getTokenName() + ":" + text.getText());
+        }
+        Collections.sort(list);
+        return list.toString();
+    }
+
+    @Test
+    public void compiledSameAsPatterns() {
+        String text = "ab abc bcc cc xx x 12.5 .5 7 \"a\\\"b\" id1";
+        AltLexer plain = new AltLexer(false);
+        AltLexer compiled = new AltLexer(true);
+        for (int i = 0; i < text.length(); i++) {
+            assertEquals(String.valueOf(i), dump(plain.getLexerContext(text).seek(i)), dump(compiled.getLexerContext(text).seek(i)));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenContext;
+import hkoba.parser2.TokenData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LexerGeneratorTest {
+    enum LexType implements ITokenType.EToken {
+        NUM,
+        ID,
+        KW,
+        OP,
+        STR
+    }
+
+    static class Grammar extends HkobaLexer {
+        Grammar() {
+            new Token(LexType.NUM) {{
+                _reg("0", "[1-9][0-9]*", "[1-9][0-9]*\\.(\\d*)", "[0-9]*\\.?[0-9]+");
+            }};
+            new Token(LexType.ID) {{
+                _reg("[a-zA-Z_]\\w*");
+            }};
+            new Token(LexType.KW) {{
+                _t("if", "in", "int");
+            }};
+            new Token(LexType.OP) {{
+                _t("+", "-", "*", "**", "/", "//");
+                _reg("a|ab");
+            }};
+            new Token(LexType.STR) {{
+                _reg("\"[^\"]*\"", "'(?:[^'\\\\]|\\\\.)*'");
+            }};
+        }
+    }
+
+    private static final class Tables extends GeneratedTables {
+        Tables(HkobaLexer lexer) {
+            super(LexerGenerator.tableParts(lexer.getAutomaton(false)), LexerGenerator.tableParts(lexer.getAutomaton(true)));
+        }
+    }
+
+    private static String dump(TokenContext context) {
+        List<String> list = new ArrayList<>();
+        for (TokenData token : context.getTokens()) {
+            TokenData.TextToken text = (TokenData.TextToken) token;
+            list.add(text.getType().getTokenName() + ":" + text.getText());
+        }
+        Collections.sort(list);
+        return list.toString();
+    }
+
+    @Test
+    public void sameAsGrammar() {
+        Grammar grammar = new Grammar();
+        Grammar generated = new Grammar();
+        generated.setGeneratedTables(new Tables(new Grammar()));
+        generated.setCompiled(true);
+
+        String chars = "ab01x_i n.+-*/\"'\\\uD83D\uDE00";
+        StringBuilder sb = new StringBuilder("if int inx 0 12.5 .5 ** // 'a\\'b' \"s\" ab a ");
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        String text = sb.toString();
+        for (int i = 0; i < text.length(); i++) {
+            assertEquals(String.valueOf(i), dump(grammar.getLexerContext(text).seek(i)), dump(generated.getLexerContext(text).seek(i)));
+        }
+    }
+
+    @Test
+    public void source() {
+        String source = LexerGenerator.generate(FormulaParser.class);
+        assertTrue(source.contains("public class FormulaParserGenerated extends hkoba.parser2.parser.FormulaParser {"));
+        assertTrue(source.contains("setGeneratedTables(Tables.INSTANCE);"));
+    }
+}
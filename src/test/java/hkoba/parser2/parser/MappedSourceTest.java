@@ -0,0 +1,91 @@
+package hkoba.parser2.parser;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class MappedSourceTest {
+    /**
+     * 指定した位置に文字列を書き込んだファイル
+     * 間は書き込まないので、対応するファイルシステムでは領域を確保しない
+     *
+     * @param size
+     * @param offsets
+     * @param texts
+     * @return
+     * @throws IOException
+     */
+    private static File sparse(long size, long[] offsets, String[] texts) throws IOException {
+        File file = File.createTempFile("mapped", ".txt");
+        file.deleteOnExit();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            for (int i = 0; i < offsets.length; i++) {
+                out.seek(offsets[i]);
+                out.write(texts[i].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void remap() throws IOException {
+        long far = 100L << 20;
+        File file = sparse(far + 3, new long[]{0, far}, new String[]{"abc", "xyz"});
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedSource source = new MappedSource(channel, StandardCharsets.ISO_8859_1, 1024);
+            assertEquals(far + 3, source.length());
+            // 離れた位置を交互に参照する
+            for (int i = 0; i < 3; i++) {
+                assertEquals("abc", source.subSequence(0, 3).toString());
+                assertEquals("xyz", source.subSequence((int) far, (int) far + 3).toString());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void decodeAcrossWindows() throws IOException {
+        long far = 100L << 20;
+        File file = sparse(far + 4, new long[]{0, far}, new String[]{"\u3042", "\u3044x"});
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedSource source = new MappedSource(channel, StandardCharsets.UTF_8, 1024);
+            assertEquals('\u3042', source.charAt(0));
+            // 3バイトの文字が1文字になるので、位置は2つ前にずれる
+            int ix = (int) far - 2;
+            assertEquals(ix + 2, source.limit(ix));
+            assertEquals("\u3044x", source.subSequence(ix, ix + 2).toString());
+            assertEquals('\u3042', source.charAt(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void largerThanIntRange() throws IOException {
+        long size = 3L << 30;
+        File file = sparse(size, new long[]{0, size - 3}, new String[]{"abc", "xyz"});
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // 先頭から参照できる
+            MappedSource source = new MappedSource(channel, StandardCharsets.UTF_8, 1024);
+            assertEquals("abc", source.subSequence(0, 3).toString());
+            try {
+                // 1バイト1文字では位置が int を超える
+                new MappedSource(channel, StandardCharsets.ISO_8859_1, 1024);
+                fail();
+            } catch (IllegalStateException e) {
+                // 扱えない
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
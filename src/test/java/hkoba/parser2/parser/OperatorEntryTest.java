@@ -0,0 +1,117 @@
+package hkoba.parser2.parser;
+
+import hkoba.parser2.ITokenType;
+import hkoba.parser2.TokenData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class OperatorEntryTest {
+    enum ExprType implements ITokenType.EToken {
+        NUM,
+        EXPR
+    }
+
+    /**
+     * 演算子の優先順位で結合する式
+     */
+    static class ExprParser extends HkobaParser {
+        ExprParser() {
+            new Token(ExprType.NUM) {{
+                _reg("[0-9]+").value(s -> Integer.valueOf(s));
+            }};
+
+            new Node(ExprType.EXPR) {{
+                operators(ExprType.NUM)
+                        .left(1, "+", "-")
+                        .left(2, "*", "/")
+                        .right(3, "**")
+                        .value(args -> eval(args));
+            }};
+        }
+
+        private static Object eval(ParserArgs args) {
+            if (args.size() == 1) {
+                return args.get(0).getValue();
+            }
+            int lhs = (Integer) args.get(0).getValue();
+            int rhs = (Integer) args.get(2).getValue();
+            switch (((TokenData.TextToken) args.get(1)).getText()) {
+                case "+":
+                    return lhs + rhs;
+                case "-":
+                    return lhs - rhs;
+                case "*":
+                    return lhs * rhs;
+                case "/":
+                    return lhs / rhs;
+                default:
+                    return (int) Math.pow(lhs, rhs);
+            }
+        }
+    }
+
+    private static TokenData parse(String text) {
+        Optional<TokenData> token = new ExprParser().getContext(text).getToken(ExprType.EXPR);
+        assertTrue(text, token.isPresent());
+        assertTrue(text, token.get().nextContext().isEof());
+        return token.get();
+    }
+
+    private static String tree(TokenData token) {
+        if (token instanceof TokenData.NodeToken) {
+            StringBuilder sb = new StringBuilder("(");
+            for (TokenData child : ((TokenData.NodeToken) token).getChildren()) {
+                sb.append(sb.length() > 1 ? " " : "").append(tree(child));
+            }
+            return sb.append(")").toString();
+        }
+        return ((TokenData.TextToken) token).getText();
+    }
+
+    @Test
+    public void precedence() {
+        assertEquals("(1 + (2 * 3))", tree(parse("1+2*3")));
+        assertEquals(7, parse("1+2*3").getValue());
+        assertEquals("((1 * 2) + 3)", tree(parse("1 * 2 + 3")));
+    }
+
+    @Test
+    public void associativity() {
+        assertEquals("((8 - 3) - 2)", tree(parse("8-3-2")));
+        assertEquals(3, parse("8-3-2").getValue());
+        assertEquals("(2 ** (3 ** 2))", tree(parse("2**3**2")));
+        assertEquals(512, parse("2**3**2").getValue());
+    }
+
+    @Test
+    public void longestOperator() {
+        // * と ** は長い方に一致する
+        assertEquals("(2 * (3 ** 2))", tree(parse("2*3**2")));
+    }
+
+    @Test
+    public void operandOnly() {
+        assertEquals("(5)", tree(parse("5")));
+        assertEquals(5, parse("5").getValue());
+    }
+
+    @Test
+    public void trailingOperatorIsNotConsumed() {
+        TokenData token = new ExprParser().getContext("1+2*").getToken(ExprType.EXPR).get();
+        assertEquals("(1 + 2)", tree(token));
+        assertEquals(3, token.getEnd().getIndex());
+    }
+
+    @Test
+    public void childrenAreMutable() {
+        // 他のパターンと同じく、子の一覧は変更できる
+        TokenData.NodeToken token = (TokenData.NodeToken) parse("1+2*3");
+        assertTrue(token.getChildren() instanceof ArrayList);
+        assertTrue(((TokenData.NodeToken) token.getChildren().get(2)).getChildren() instanceof ArrayList);
+        assertTrue(((TokenData.NodeToken) parse("5")).getChildren() instanceof ArrayList);
+    }
+}